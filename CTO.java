@@ -5,12 +5,12 @@
 import FormatIO.EofX;
 import FormatIO.FileIn;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
+import java.io.File;
 import java.io.IOException;
-import java.io.StringWriter;
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
 
 public class CTO {
     private String encryptedFile = "src/cto_encrypted.txt";
@@ -18,276 +18,294 @@ public class CTO {
     public String decryptedFileRoot = "src/cto_decrypted";
     private double keySpaceSize = (int) Math.pow(16, 4);
     private double extendedCharLimit = 0;
+    private int keysPerPartition = 256;
+    private int topK = 16;
+    private int sampleBlocks = 256;
+    private int sampleRunLength = 16;
+    private boolean stratifiedSample = false;
+    private int sampleSurvivors = 256;
+    private Comparator<TopCandidates.Candidate> ranking = TopCandidates.byMse;
+    private LongAdder rejectedKeys = new LongAdder();
+    private LongAdder rejectedBlocks = new LongAdder();
     private String monogramTableDir = "src/english_monograms.txt";
     private String bigramTableDir = "src/english_bigrams.txt";
+    private String trigramTableDir = "src/english_trigrams.txt";
+    private LanguageModel languageModel = null;
 
     /***
-     * Extended class to convert hex-blocks to plain text without writing to file
+     * Reads the cypher text once and keeps the blocks as plain ints
      */
-    static class Block2TextExtended extends Block2Text {
-
-        private String blockToTextArray(String hexString) {
-            StringWriter buffer = new StringWriter();
-
-            for (String s : hexString.split("\\n")) {
-                int i = Hex16.convert(s);
-                int c0 = i / 256;
-                int c1 = i % 256;
-                buffer.write((char) c0);
-                if (c1 != 0)
-                    buffer.write((char) c1);
+    private static int[] readCypherBlocks(String fileName) {
+        int[] blocks = new int[1024];
+        int count = 0;
+        FileIn fin = new FileIn(fileName);
+        try {
+            for (; ; ) {
+                int c = Hex16.convert(fin.readWord());
+                if (count == blocks.length) {
+                    blocks = Arrays.copyOf(blocks, count * 2);
+                }
+                blocks[count++] = c;
             }
-            return buffer.toString();
+        } catch (EofX x) {
         }
-
-
+        fin.close();
+        return Arrays.copyOf(blocks, count);
     }
 
     /***
-     * Extended class to decrypt encrypted blocks without writing to file
+     * Decrypts every block straight into the given text buffer (two characters
+     * per block, as in Block2Text the low byte is only written when it is not
+     * zero) and checks each character on the way. The key is abandoned as soon
+     * as there are more control or extended characters than allowed.
+     * Returns the text length, or minus the number of blocks decrypted if the
+     * key was rejected.
      */
-    static class DecryptAllBlocksExtended extends DecryptAllBlocks {
-        private String keyString;
-        private String nameIn;
-        private ArrayList<String> textToDecode = new ArrayList<>();
-
-        public DecryptAllBlocksExtended(String keyString, String nameIn) {
-            this.keyString = keyString;
-            this.nameIn = nameIn;
-        }
+    private int decryptPrintable(int key, int[] cypherBlocks, char[] text) {
+        int counter = 0;
+        int length = 0;
+        int startExtendedAsciiCodes = 128;
+        int finishControlAsciiCodes = 31;
 
-        public String getDecoded() {
-            if (textToDecode.size() == 0) {
-                // open files
-                FileIn fin = new FileIn(nameIn);
-                String word;
-                try {
-                    for (; ; ) {
-                        word = fin.readWord();
-                        textToDecode.add(word);
-                    }
-                } catch (EofX x) {
+        for (int b = 0; b < cypherBlocks.length; b++) {
+            int p = CoderEngine.decrypt(key, cypherBlocks[b]);
+            for (int chasInt = p; chasInt != 0; chasInt >>= 8) {
+                int asciiCode = chasInt & 0x00ff;
+                if (asciiCode >= startExtendedAsciiCodes || asciiCode <= finishControlAsciiCodes) {
+                    counter += 1;
+//                    No point of continuing if the limit is exceeded
+                    if (counter > extendedCharLimit)
+                        return -(b + 1);
                 }
-                fin.close();
-            }
-
-            StringWriter newBuffer = new StringWriter();
-            int key = Hex16.convert(keyString);
-
-
-            // read blocks, encrypt and output blocks
-            for (String s : textToDecode) {
-                int c = Hex16.convert(s);
-                int p = Coder.decrypt(key, c);
-                String out = String.format("0x%04x", p);
-                newBuffer.write(out + "\n");
             }
-            return newBuffer.toString();
-        }
-
-        public void setKey(String key) {
-            this.keyString = key;
+            text[length++] = (char) (p >> 8);
+            if ((p & 0xff) != 0)
+                text[length++] = (char) (p & 0xff);
         }
+        return length;
     }
 
     /***
-     * Helper method to read the monogram frequency table from file and divide
-     * frequencies by 100 as their are in % in the file.
+     * Tries keys from fromKey (inclusive) to toKey (exclusive) and keeps the
+     * best keep of them according to the configured ranking
      */
-    private static HashMap<String, Float> getFreqTable(String fileName) throws IOException {
-        BufferedReader buffer = new BufferedReader(new FileReader(fileName));
-        HashMap<String, Float> freqTable = new HashMap<>();
-        String line;
-        while ((line = buffer.readLine()) != null) {
-            String[] parts = line.split(":");
-            freqTable.put(parts[0].trim().toLowerCase(), Float.parseFloat(parts[1].trim()) / 100);
+    private TopCandidates searchKeys(int fromKey, int toKey, int[] cypherBlocks, LetterScorer scorer, int keep) {
+        TopCandidates candidates = new TopCandidates(keep, ranking);
+        char[] text = new char[cypherBlocks.length * 2];
+        for (int i = fromKey; i < toKey; i++) {
+//            If we find any extended or control characters, throw the plain text away and try other key
+            int length = decryptPrintable(i, cypherBlocks, text);
+            if (length < 0) {
+                rejectedKeys.increment();
+                rejectedBlocks.add(-length);
+                continue;
+            }
+
+            candidates.offer(score(i, text, length, scorer));
         }
-        return freqTable;
+        return candidates;
     }
 
     /***
-     * Helper method to read the bigram frequency table from
-     * file and normalise by dividing by the highest frequency.
+     * Scores a decrypted text with the language model if one was chosen,
+     * otherwise with the monogram MSE and bigram score
      */
-    private static HashMap<String, Float> getBigramTable(String fileName) throws IOException {
-        BufferedReader buffer = new BufferedReader(new FileReader(fileName));
-        HashMap<String, Float> freqTable = new HashMap<>();
-        String line;
-        boolean first = true;
-        float denom = 1;
-        while ((line = buffer.readLine()) != null) {
-            String[] parts = line.split(",");
-            if (first) {
-                denom = Float.parseFloat(parts[1].trim());
-                first = false;
-            }
-            freqTable.put(parts[0].trim().toLowerCase(), Float.parseFloat(parts[1].trim()) / denom);
+    private TopCandidates.Candidate score(int key, char[] text, int length, LetterScorer scorer) {
+        if (languageModel != null) {
+            return new TopCandidates.Candidate(key, 0, 0, languageModel.score(text, length));
         }
-        return freqTable;
+        scorer.count(text, length);
+        return new TopCandidates.Candidate(key, scorer.mse(), scorer.bigramScore());
     }
 
     /***
-     * Split given text to words, loop through every word and count the bigram occurrences.
+     * Scores the whole key space on the given blocks, every partition keeps
+     * its own best candidates and these are merged at the end
      */
-    private static HashMap<String, Integer> countBigrams(HashMap<String, Float> bigramTable, String text) {
-        HashMap<String, Integer> table = new HashMap<>();
-        String sub;
-        for (String word : text.split("\\b")) {
-            for (int i = 0; i < word.length() - 2; i++) {
-                sub = word.substring(i, i + 2).toLowerCase();
-                if (bigramTable.get(sub) != null) {
-                    if (table.get(sub) == null) {
-                        table.put(sub, 1);
-                    } else {
-                        table.put(sub, table.get(sub) + 1);
-                    }
-                }
-            }
-        }
-        return table;
+    private TopCandidates searchAllKeys(int[] cypherBlocks, LetterScorer scorer, int keep) {
+        int partitions = (int) Math.ceil(keySpaceSize / keysPerPartition);
+        return IntStream.range(0, partitions).parallel()
+                .mapToObj(p -> searchKeys(p * keysPerPartition,
+                        (int) Math.min(keySpaceSize, (p + 1) * keysPerPartition), cypherBlocks, scorer.copy(), keep))
+                .reduce(TopCandidates::merge)
+                .orElse(new TopCandidates(keep, ranking));
     }
 
     /***
-     * Calculate the bigram score by multiplying the 'popularity' of a bigram by number
-     * of occurrences in the plain text. Sum these terms for every bigram
-     * that was found in the plain text to get a final score
+     * Scores only the given candidates again, this time on the given blocks
      */
-    private static float calcBigramScore(HashMap<String, Float> bigramTable, HashMap<String, Integer> sentenceTable) {
-        float score = 0;
-        for (String key : sentenceTable.keySet()) {
-            score += bigramTable.get(key) * sentenceTable.get(key);
+    private TopCandidates rescore(TopCandidates candidates, int[] cypherBlocks, LetterScorer scorer) {
+        TopCandidates best = new TopCandidates(topK, ranking);
+        char[] text = new char[cypherBlocks.length * 2];
+        for (TopCandidates.Candidate candidate : candidates.ranked()) {
+            int length = decryptPrintable(candidate.key, cypherBlocks, text);
+            if (length >= 0) {
+                best.offer(score(candidate.key, text, length, scorer));
+            }
         }
-        return score;
+        return best;
     }
 
     /***
-     * Calculate the distance between plain text and typical English text by comparing letter frequencies.
-     * Distance is measured as Mean Squared Error.
+     * Picks the blocks scored in the first stage: either the first sampleBlocks
+     * blocks, or the same number spread over the whole text in runs of
+     * sampleRunLength blocks
      */
-    private static float getMse(String text, HashMap<String, Float> freqTable) {
-        HashMap<String, Float> table = new HashMap<>();
-        int oldTextLength = text.length();
-
-//        Leave only English alphabet letters
-        text = text.replaceAll("[^A-Za-z]", "").toLowerCase();
-
-        for (char ch : text.toCharArray()) {
-            String strKey = Character.toString(ch);
-            if (table.get(strKey) != null) {
-                table.put(strKey, table.get(strKey) + 1);
-            } else {
-                table.put(strKey, (float) 0);
-            }
-        }
-
-//        Get letter frequency in a found plain text
-        for (String key : table.keySet()) {
-            table.put(key, table.get(key) / oldTextLength);
+    private int[] sampleBlocks(int[] cypherBlocks) {
+        if (!stratifiedSample) {
+            return Arrays.copyOf(cypherBlocks, sampleBlocks);
         }
-
-        float mse = 0;
-        for (String key : freqTable.keySet()) {
-            float letterOcc = ((table.get(key) == null) ? 0 : table.get(key));
-            mse += Math.pow(freqTable.get(key) - letterOcc, 2);
+        int[] sample = new int[sampleBlocks];
+        int runs = (sampleBlocks + sampleRunLength - 1) / sampleRunLength;
+        int stride = cypherBlocks.length / runs;
+        int length = 0;
+        for (int run = 0; run < runs && length < sampleBlocks; run++) {
+            for (int b = run * stride; b < run * stride + sampleRunLength && length < sampleBlocks; b++) {
+                sample[length++] = cypherBlocks[b];
+            }
         }
-        return mse;
-
+        return sample;
     }
 
     /***
-     * Takes a decrypted piece of text in hex-word format and counts
-     * how many control and extended characters there are
+     * With a language model the best ranked candidate, otherwise the best
+     * bigram score among the top candidates. Null if there are none.
      */
-    private int countExtendedASCII(String hexString) {
-        int counter = 0;
-        int startExtendedAsciiCodes = 128;
-        int finishControlAsciiCodes = 31;
-
-        for (String hexWord : hexString.split("\n")) {
-            int chasInt = Hex16.convert(hexWord);
-            while (chasInt != 0) {
-                int asciiCode = chasInt & (Hex16.convert("0x00ff"));
-                if (asciiCode >= startExtendedAsciiCodes || asciiCode <= finishControlAsciiCodes) {
-                    counter += 1;
-//                    No point of continuing if the limit is exceeded
-                    if (counter > extendedCharLimit)
-                        return counter;
-                }
-                chasInt >>= 8;
+    private TopCandidates.Candidate pickWinner(TopCandidates best) {
+        if (languageModel != null) {
+            return (best.size() == 0) ? null : best.ranked().get(0);
+        }
+        TopCandidates.Candidate winner = null;
+        for (TopCandidates.Candidate candidate : best.ranked()) {
+            if (winner == null || candidate.bigramScore > winner.bigramScore) {
+                winner = candidate;
             }
         }
-        return counter;
+        return winner;
+    }
+
+    private static void usage(String error) {
+        System.out.println(error);
+        System.out.println("Usage: CTO [-k candidates] [-rank mse|bigram] [-sample blocks] [-stratified]"
+                + " [-survivors keys] [-verify] [-model mse|mono|bi|tri]");
+        System.exit(1);
     }
 
     public static void main(String[] args) throws IOException {
         CTO cto = new CTO();
-        HashMap<String, Float> freqTable = null;
-        try {
-            freqTable = getFreqTable(cto.monogramTableDir);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-
-        String key = "0x0000";
-        double lowMse = -1;
-        ArrayList<Integer> finalKeys = new ArrayList<>();
-
-        ArrayList<String> potText = new ArrayList<>();
-        DecryptAllBlocksExtended dec = new DecryptAllBlocksExtended(key, cto.encryptedFile);
-        String plaintText;
-        for (int i = 0; i <= cto.keySpaceSize; i++) {
-            key = String.format("0x%04X", i);
-            dec.setKey(key);
-
-            String decodedHexText = dec.getDecoded();
-            Block2TextExtended block2TextExtended = new Block2TextExtended();
-
-
-            plaintText = block2TextExtended.blockToTextArray(decodedHexText);
-
-//            If we find any extended or control characters, throw the plain text away and try other key
-            int illegalChars = cto.countExtendedASCII(decodedHexText);
-            if (illegalChars > cto.extendedCharLimit) {
-                continue;
+        boolean verify = false;
+//        Options: -k <candidates to keep> -rank <mse|bigram> -sample <blocks> -stratified
+//        -survivors <keys kept after the sample stage> -verify (compare with a full scan)
+//        -model <mse|mono|bi|tri> (mse keeps the MSE-then-bigram ranking, the others rank by log-likelihood)
+        String model = "mse";
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-k":
+                    cto.topK = Integer.parseInt(args[++i]);
+                    break;
+                case "-rank":
+                    String rank = args[++i];
+                    if (!rank.equals("mse") && !rank.equals("bigram")) {
+                        usage("Unknown ranking " + rank);
+                    }
+                    cto.ranking = rank.equals("bigram") ? TopCandidates.byBigramScore : TopCandidates.byMse;
+                    break;
+                case "-sample":
+                    cto.sampleBlocks = Integer.parseInt(args[++i]);
+                    break;
+                case "-stratified":
+                    cto.stratifiedSample = true;
+                    break;
+                case "-survivors":
+                    cto.sampleSurvivors = Integer.parseInt(args[++i]);
+                    break;
+                case "-verify":
+                    verify = true;
+                    break;
+                case "-model":
+                    model = args[++i];
+                    break;
+                default:
+                    usage("Unknown option " + args[i]);
             }
+        }
+        if (cto.topK < 1) {
+            usage("-k must keep at least one candidate");
+        }
+        if (cto.sampleBlocks < 1 || cto.sampleSurvivors < 1) {
+            usage("-sample and -survivors must be at least 1");
+        }
+        switch (model) {
+            case "mono":
+                cto.languageModel = NGramModel.monograms(cto.monogramTableDir);
+                break;
+            case "bi":
+                cto.languageModel = NGramModel.bigrams(cto.bigramTableDir);
+                break;
+            case "tri":
+//                No trigram table is shipped, it has to be supplied first
+                if (!new File(cto.trigramTableDir).exists()) {
+                    usage("-model tri needs a trigram table in " + cto.trigramTableDir);
+                }
+                cto.languageModel = NGramModel.trigrams(cto.trigramTableDir);
+                break;
+            case "mse":
+                break;
+            default:
+                usage("Unknown model " + model);
+        }
+        if (cto.languageModel != null) {
+            cto.ranking = TopCandidates.byLogLikelihood;
+        }
+        LetterScorer scorer = new LetterScorer(cto.monogramTableDir, cto.bigramTableDir);
+        int[] cypherBlocks = readCypherBlocks(cto.encryptedFile);
+
+//        Build the keystream before timing anything
+        KeystreamTable.mask(0);
+        long start = System.nanoTime();
+        TopCandidates best;
+        if (cto.sampleBlocks > 0 && cto.sampleBlocks < cypherBlocks.length) {
+//            Stage one screens every key on a sample, stage two re-scores the survivors on the full text
+            TopCandidates survivors = cto.searchAllKeys(cto.sampleBlocks(cypherBlocks), scorer, cto.sampleSurvivors);
+            best = cto.rescore(survivors, cypherBlocks, scorer);
+            System.out.println("Screened on " + cto.sampleBlocks + " of " + cypherBlocks.length + " blocks, "
+                    + survivors.size() + " keys re-scored on the full text");
+        } else {
+            best = cto.searchAllKeys(cypherBlocks, scorer, cto.topK);
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.println("Rejected keys: " + cto.rejectedKeys.sum() + ", blocks decrypted per rejected key: "
+                + String.format("%.2f", (double) cto.rejectedBlocks.sum() / Math.max(1, cto.rejectedKeys.sum())));
 
-//            Collect the plain texts with lowest MSEs only
-            if (lowMse < 0) {
-                lowMse = getMse(plaintText, freqTable);
-                finalKeys.add(i);
-                potText.add(plaintText);
+        for (TopCandidates.Candidate candidate : best.ranked()) {
+            if (cto.languageModel != null) {
+                System.out.println(String.format("0x%04X  log-likelihood %.4f", candidate.key, candidate.logLikelihood));
             } else {
-                float currMse = getMse(plaintText, freqTable);
-                if (currMse <= lowMse) {
-                    lowMse = currMse;
-                    finalKeys.add(i);
-                    potText.add(plaintText);
-                }
+                System.out.println(String.format("0x%04X  mse %.6f  bigram score %.3f",
+                        candidate.key, candidate.mse, candidate.bigramScore));
             }
-
+        }
+        TopCandidates.Candidate winner = cto.pickWinner(best);
+        if (winner == null) {
+            System.out.println("No key gives printable plain text");
+            return;
         }
 
-
-        HashMap<String, Float> bigramTable = getBigramTable(cto.bigramTableDir);
-        float score;
-        float maxScore = 0;
-        String decryptedText = null;
-        int finalKey = -1;
-        int counter = 0;
-
-//        Get bigram score for every potential plain text string
-        for (String s : potText) {
-            score = calcBigramScore(bigramTable, countBigrams(bigramTable, s));
-            if (score >= maxScore) {
-                decryptedText = s;
-                maxScore = score;
-                finalKey = finalKeys.get(counter);
-            }
-            counter++;
+        if (verify) {
+            long fullStart = System.nanoTime();
+            TopCandidates.Candidate fullWinner = cto.pickWinner(cto.searchAllKeys(cypherBlocks, scorer, cto.topK));
+            long fullElapsed = System.nanoTime() - fullStart;
+            System.out.println(String.format("Search took %.1f ms, full scan %.1f ms, speedup %.2fx",
+                    elapsed / 1e6, fullElapsed / 1e6, (double) fullElapsed / elapsed));
+            System.out.println("Full scan key " + ((fullWinner != null && fullWinner.key == winner.key)
+                    ? "matches" : "DIFFERS: " + ((fullWinner == null) ? "none" : String.format("0x%04X", fullWinner.key))));
         }
-        System.out.println("INT key: " + finalKey);
-        System.out.println("HEX key: " + String.format("0x%04X", finalKey));
+
+//        Only the winner's plain text is ever rebuilt
+        char[] text = new char[cypherBlocks.length * 2];
+        String decryptedText = new String(text, 0, cto.decryptPrintable(winner.key, cypherBlocks, text));
+        System.out.println("INT key: " + winner.key);
+        System.out.println("HEX key: " + String.format("0x%04X", winner.key));
         System.out.println("DECRYPTED TEXT: " + decryptedText);
     }
 }
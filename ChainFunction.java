@@ -0,0 +1,77 @@
+/**
+ * The step function of a time-memory trade-off chain: encrypt the chosen
+ * plain text with the current value as key, then reduce the cypher text to
+ * the next key.
+ * <p>
+ * Hellman tables use the same reduction in every column; variant 0 is the
+ * identity, which gives the original TMT1 chains. Rainbow tables use a
+ * different reduction in every column, so two chains only merge if they
+ * collide in the same column.
+ * Reductions XOR the cypher text with a mask hashed from the variant (and
+ * column), so every variant gives an independent table.
+ */
+public final class ChainFunction {
+    public static final int hellman = 0;
+    public static final int rainbow = 1;
+
+    private final int plainText;
+    private final int mode;
+    private final int variant;
+    private final int hellmanMask;
+
+    public ChainFunction(int plainText, int mode, int variant) {
+        if (mode != hellman && mode != rainbow) {
+            throw new IllegalArgumentException("Unknown chain mode " + mode);
+        }
+        this.plainText = plainText;
+        this.mode = mode;
+        this.variant = variant;
+        this.hellmanMask = (variant == 0) ? 0 : mask(variant, 0);
+    }
+
+    public int getPlainText() {
+        return plainText;
+    }
+
+    public int getMode() {
+        return mode;
+    }
+
+    public int getVariant() {
+        return variant;
+    }
+
+    public boolean isRainbow() {
+        return mode == rainbow;
+    }
+
+    /***
+     * Next key in the chain after key x in the given column
+     */
+    public int step(int x, int column) {
+        return reduce(CoderEngine.encrypt(x, plainText), column);
+    }
+
+    /***
+     * Maps the cypher text produced in the given column to the next key
+     */
+    public int reduce(int cypherText, int column) {
+        if (mode == hellman) {
+            return cypherText ^ hellmanMask;
+        }
+        return cypherText ^ mask(variant, column + 1);
+    }
+
+    /***
+     * 16-bit mask hashed from variant and column (murmur3 finaliser)
+     */
+    private static int mask(int variant, int column) {
+        int h = variant * 0x9E3779B1 + column;
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h & 0xffff;
+    }
+}
@@ -0,0 +1,138 @@
+import java.util.List;
+
+/**
+ * Online phase of the time-memory trade-off: finds the key that encrypts a
+ * chosen plain text to a cypher text by walking towards the end points of a
+ * ChainTable. Tables are only read, so any number of searches can share them,
+ * but a search keeps its own probe and false alarm counters and must only be
+ * used by one thread at a time.
+ */
+public class ChainSearch {
+    private long probes;
+    private long falseAlarms;
+
+    /***
+     * Number of end point lookups in the tables so far
+     */
+    public long getProbes() {
+        return probes;
+    }
+
+    /***
+     * Number of chains rebuilt, or ruled out by their length, without holding the key
+     */
+    public long getFalseAlarms() {
+        return falseAlarms;
+    }
+
+    /**
+     * Searches the tables in order and returns the key found in the first one that holds it, or -1
+     */
+    public int findKey(List<ChainTable> tables, int cypherText, int plainText) {
+        for (ChainTable table : tables) {
+            int key = findKey(table, cypherText, plainText);
+            if (key >= 0) {
+                return key;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 1) Looks for a chain that ends with given cypher-text
+     * 2) Rebuilds the chain up to the column the key should be in and checks it
+     */
+    public int findKey(ChainTable table, int cypherText, int plainText) {
+        ChainFunction function = table.getFunction();
+        if (table.getDistinguishedBits() > 0) {
+            return findDistinguishedKey(table, function, cypherText, plainText);
+        } else if (function.isRainbow()) {
+            return findRainbowKey(table, function, cypherText, plainText);
+        }
+        return findHellmanKey(table, function, cypherText, plainText);
+    }
+
+    /**
+     * Hellman chains reduce the same way in every column, so one walk of at most
+     * one chain length finds the end of every chain that could hold the key
+     */
+    private int findHellmanKey(ChainTable table, ChainFunction function, int cypherText, int plainText) {
+        int columns = table.getColumns();
+        int y = function.reduce(cypherText, 0);
+        for (int steps = 0; steps < columns; steps++) {
+            int key = checkChains(table, y, steps, cypherText, plainText);
+            if (key >= 0) {
+                return key;
+            }
+            y = function.step(y, 0);
+        }
+        return -1;
+    }
+
+    /**
+     * Rainbow chains reduce differently in every column, so the walk to the end
+     * is repeated for every column the key could be in, last column first
+     */
+    private int findRainbowKey(ChainTable table, ChainFunction function, int cypherText, int plainText) {
+        int columns = table.getColumns();
+        for (int column = columns - 1; column >= 0; column--) {
+            int y = function.reduce(cypherText, column);
+            for (int j = column + 1; j < columns; j++) {
+                y = function.step(y, j);
+            }
+            int key = checkChains(table, y, columns - 1 - column, cypherText, plainText);
+            if (key >= 0) {
+                return key;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Distinguished point chains end at the first distinguished point, so the
+     * table is only probed once, where the walk reaches one
+     */
+    private int findDistinguishedKey(ChainTable table, ChainFunction function, int cypherText, int plainText) {
+        int y = function.reduce(cypherText, 0);
+        int steps = 0;
+        while (!table.isDistinguishedPoint(y)) {
+            if (++steps >= table.getColumns()) {
+                return -1;
+            }
+            y = function.step(y, 0);
+        }
+        return checkChains(table, y, steps, cypherText, plainText);
+    }
+
+    /**
+     * Rebuilds every chain ending in end up to the column stepsToEnd + 1 steps
+     * before its end and returns the key there if it encrypts the plain text to
+     * the cypher text, or -1.
+     * A matching end point whose chain does not hold the key is a false alarm;
+     * a chain shorter than the walk is one without being rebuilt.
+     */
+    private int checkChains(ChainTable table, int end, int stepsToEnd, int cypherText, int plainText) {
+        probes++;
+        int chain = table.indexOf(end);
+        if (chain < 0) {
+            return -1;
+        }
+        ChainFunction function = table.getFunction();
+        for (; chain < table.size() && table.end(chain) == end; chain++) {
+            int column = table.length(chain) - 1 - stepsToEnd;
+            if (column < 0) {
+                falseAlarms++;
+                continue;
+            }
+            int x_j = table.start(chain);
+            for (int j = 0; j < column; j++) {
+                x_j = function.step(x_j, j);
+            }
+            if (CoderEngine.encrypt(x_j, plainText) == cypherText) {
+                return x_j;
+            }
+            falseAlarms++;
+        }
+        return -1;
+    }
+}
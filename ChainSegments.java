@@ -0,0 +1,230 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Checkpoints of a table being generated: a directory of append-only segment
+ * files holding the chains of every partition TMT1 has finished. Partitions
+ * only depend on the seed and their number, so a run that is interrupted can
+ * resume from the partitions already on disk, and a finished table can be
+ * extended with more partitions later without recomputing the old ones.
+ * <p>
+ * Every run appends to a new segment. A segment starts with a header (magic,
+ * version, plain text block, chain mode, reduction variant, distinguished
+ * point bits, columns, table index, chains per partition, RNG seed), followed
+ * by one record per finished partition: partition number, chain count, the
+ * start, end and length of every chain, and a CRC32 of the record. A record
+ * cut short by a crash fails its length or checksum and is ignored.
+ * compact() merges all segments into one.
+ */
+public class ChainSegments implements Closeable {
+    private static final int magic = 0x544d5453;    // "TMTS"
+    private static final int version = 1;
+    private static final int headerSize = 4 + 4 + 4 + 4 + 4 + 4 + 4 + 4 + 4 + 8;
+    private static final String suffix = ".seg";
+
+    private final File directory;
+    private final ByteBuffer header;
+//    Chains of every finished partition, as {starts, ends, lengths}
+    private final Map<Integer, int[][]> partitions = new TreeMap<>();
+    private FileChannel out;
+
+    /***
+     * Opens the segment directory and reads every segment written with the
+     * same parameters, any other segment is an error
+     */
+    public ChainSegments(String directory, ChainFunction function, int columns, int distinguishedBits,
+                         int tableIndex, int chainsPerPartition, long seed) throws IOException {
+        this.directory = new File(directory);
+        this.header = ByteBuffer.allocate(headerSize);
+        header.putInt(magic).putInt(version)
+                .putInt(function.getPlainText()).putInt(function.getMode()).putInt(function.getVariant())
+                .putInt(distinguishedBits).putInt(columns).putInt(tableIndex).putInt(chainsPerPartition)
+                .putLong(seed);
+        header.flip();
+
+        for (File segment : segments()) {
+            read(segment);
+        }
+    }
+
+    /***
+     * Seed the segments in the directory were generated with, or null if there are none
+     */
+    public static Long storedSeed(String directory) throws IOException {
+        File[] segments = new File(directory).listFiles((dir, name) -> name.endsWith(suffix));
+        if (segments == null || segments.length == 0) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segments[0])))) {
+            in.skipBytes(headerSize - 8);
+            return in.readLong();
+        }
+    }
+
+    private File[] segments() {
+        File[] segments = directory.listFiles((dir, name) -> name.endsWith(suffix));
+        if (segments == null) {
+            return new File[0];
+        }
+        Arrays.sort(segments);
+        return segments;
+    }
+
+    private void read(File segment) throws IOException {
+        byte[] bytes = Files.readAllBytes(segment.toPath());
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        if (bytes.length < headerSize) {
+            return;
+        }
+        ByteBuffer segmentHeader = ByteBuffer.wrap(bytes, 0, headerSize);
+        if (!segmentHeader.equals(header.duplicate())) {
+            throw new IOException(segment + " was generated with different table parameters,"
+                    + " use the same options or delete " + directory);
+        }
+        buffer.position(headerSize);
+        while (buffer.remaining() >= 8) {
+            int start = buffer.position();
+            int partition = buffer.getInt();
+            int count = buffer.getInt();
+            if (count < 0 || buffer.remaining() < count * 6L + 8) {
+                return;
+            }
+            int[][] chains = new int[3][count];
+            for (int[] values : chains) {
+                for (int i = 0; i < count; i++) {
+                    values[i] = buffer.getShort() & 0xffff;
+                }
+            }
+            CRC32 crc = new CRC32();
+            crc.update(bytes, start, buffer.position() - start);
+            if (buffer.getLong() != crc.getValue()) {
+                return;
+            }
+//            A partition regenerated with more chains replaces the shorter one
+            int[][] known = partitions.get(partition);
+            if (known == null || known[0].length < count) {
+                partitions.put(partition, chains);
+            }
+        }
+    }
+
+    /***
+     * Chains of a finished partition as {starts, ends, lengths}, or null if it is not on disk
+     */
+    public int[][] partition(int partition) {
+        return partitions.get(partition);
+    }
+
+    /***
+     * Number of chains in all finished partitions
+     */
+    public int chains() {
+        int chains = 0;
+        for (int[][] partition : partitions.values()) {
+            chains += partition[0].length;
+        }
+        return chains;
+    }
+
+    /***
+     * Appends one finished partition to this run's segment and forces it to
+     * disk, safe to call from several generating threads
+     */
+    public synchronized void append(int partition, int[][] chains) throws IOException {
+        if (out == null) {
+            out = newSegment();
+        }
+        write(out, partition, chains);
+        out.force(false);
+        partitions.put(partition, chains);
+    }
+
+    private FileChannel newSegment() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+        File[] segments = segments();
+        int next = 0;
+        for (File segment : segments) {
+            String name = segment.getName();
+            next = Math.max(next, Integer.parseInt(name.substring(0, name.length() - suffix.length())) + 1);
+        }
+        FileChannel channel = new FileOutputStream(new File(directory, segmentName(next))).getChannel();
+        ByteBuffer head = header.duplicate();
+        while (head.hasRemaining()) {
+            channel.write(head);
+        }
+        return channel;
+    }
+
+    private static String segmentName(int number) {
+        return String.format("%08d", number) + suffix;
+    }
+
+    private static void write(FileChannel channel, int partition, int[][] chains) throws IOException {
+        int count = chains[0].length;
+        ByteBuffer record = ByteBuffer.allocate(4 + 4 + count * 6 + 8);
+        record.putInt(partition).putInt(count);
+        for (int[] values : chains) {
+            for (int i = 0; i < count; i++) {
+                record.putShort((short) values[i]);
+            }
+        }
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 0, record.position());
+        record.putLong(crc.getValue());
+        record.flip();
+        while (record.hasRemaining()) {
+            channel.write(record);
+        }
+    }
+
+    /***
+     * Replaces all segments by a single one holding every finished partition
+     * in order. The merged segment is written completely before the old ones
+     * are deleted, so an interrupted compaction loses nothing.
+     */
+    public synchronized void compact() throws IOException {
+        close();
+        File[] old = segments();
+        if (old.length <= 1) {
+            return;
+        }
+        File temp = File.createTempFile("compact", ".tmp", directory);
+        try {
+            try (FileOutputStream stream = new FileOutputStream(temp);
+                 FileChannel channel = stream.getChannel()) {
+                ByteBuffer head = header.duplicate();
+                while (head.hasRemaining()) {
+                    channel.write(head);
+                }
+                for (Map.Entry<Integer, int[][]> partition : partitions.entrySet()) {
+                    write(channel, partition.getKey(), partition.getValue());
+                }
+                channel.force(true);
+            }
+//            Take the name of the first segment, which always sorts first
+            Files.move(temp.toPath(), old[0].toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            for (int i = 1; i < old.length; i++) {
+                Files.delete(old[i].toPath());
+            }
+        } finally {
+            Files.deleteIfExists(temp.toPath());
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+    }
+}
@@ -0,0 +1,341 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+
+/**
+ * Compact time-memory trade-off table: the start and end of every chain in
+ * two parallel 16-bit arrays sorted by end point, 4 bytes per chain.
+ * Blocks are 16 bits, so values are stored as shorts and read back unsigned.
+ * Lookups are a binary search on the end points and never allocate.
+ * <p>
+ * Several chains may share an end point; they are kept next to each other,
+ * ordered by start.
+ * <p>
+ * Distinguished point tables end every chain at the first key whose low
+ * distinguishedBits bits are zero, at most columns steps from its start, so
+ * chains differ in length and the length of each is kept in a third array.
+ * Chains sharing an end point in such a table have merged. Hellman tables
+ * imported from the text format keep the same third array when their chains
+ * are not all columns steps long.
+ * <p>
+ * Tables are saved in a binary format and opened through a MappedByteBuffer,
+ * so lookups read the file in place without parsing it. Layout (big endian):
+ * magic, version, plain text block, chain mode, reduction variant,
+ * distinguished point bits, chains, columns, RNG seed, CRC32 of the arrays,
+ * then the sorted end points followed by the matching start points and, for
+ * tables with chains of different lengths, the chain lengths.
+ */
+public class ChainTable {
+    private static final int magic = 0x544d5442;    // "TMTB"
+    private static final int version = 3;
+    private static final int headerSize = 4 + 4 + 4 + 4 + 4 + 4 + 4 + 4 + 8 + 8;
+    private static final int keySpaceSize = KeystreamTable.keySpaceSize;
+    private static final int chainsPerPartition = 1024;
+
+    private final ChainFunction function;
+    private final int columns;
+    private final int distinguishedBits;
+    private final int distinguishedMask;
+    private final long seed;
+    private final long checksum;
+    private final ShortBuffer ends;
+    private final ShortBuffer starts;
+    private final ShortBuffer lengths;
+
+    /***
+     * Builds a table of fixed length chains, ends[i] is the end of the chain starting at starts[i]
+     */
+    public ChainTable(ChainFunction function, int columns, long seed, int[] ends, int[] starts) {
+        this(function, columns, 0, seed, ends, starts, null);
+    }
+
+    /***
+     * Builds the table from unsorted chains, ends[i] is the end of the chain starting
+     * at starts[i] and lengths[i] its length, which is only kept for distinguished
+     * points or when some chain is not columns steps long
+     */
+    public ChainTable(ChainFunction function, int columns, int distinguishedBits, long seed,
+                      int[] ends, int[] starts, int[] lengths) {
+        int size = ends.length;
+        boolean keepLengths = distinguishedBits > 0;
+        for (int i = 0; lengths != null && i < size && !keepLengths; i++) {
+            keepLengths = lengths[i] != columns;
+        }
+//        Sort (end, start, length) packed into one long per chain
+        long[] chains = new long[size];
+        for (int i = 0; i < size; i++) {
+            int length = keepLengths ? lengths[i] : 0;
+            chains[i] = ((long) (ends[i] & 0xffff) << 32) | ((long) (starts[i] & 0xffff) << 16) | (length & 0xffff);
+        }
+        Arrays.sort(chains);
+
+        short[] sortedEnds = new short[size];
+        short[] sortedStarts = new short[size];
+        short[] sortedLengths = new short[keepLengths ? size : 0];
+        for (int i = 0; i < size; i++) {
+            sortedEnds[i] = (short) (chains[i] >>> 32);
+            sortedStarts[i] = (short) (chains[i] >>> 16);
+            if (keepLengths) {
+                sortedLengths[i] = (short) chains[i];
+            }
+        }
+        this.function = function;
+        this.columns = columns;
+        this.distinguishedBits = distinguishedBits;
+        this.distinguishedMask = (1 << distinguishedBits) - 1;
+        this.seed = seed;
+        this.ends = ShortBuffer.wrap(sortedEnds);
+        this.starts = ShortBuffer.wrap(sortedStarts);
+        this.lengths = ShortBuffer.wrap(sortedLengths);
+        this.checksum = crc(this.ends, this.starts, this.lengths);
+    }
+
+    private ChainTable(ChainFunction function, int columns, int distinguishedBits, long seed, long checksum,
+                       ShortBuffer ends, ShortBuffer starts, ShortBuffer lengths) {
+        this.function = function;
+        this.columns = columns;
+        this.distinguishedBits = distinguishedBits;
+        this.distinguishedMask = (1 << distinguishedBits) - 1;
+        this.seed = seed;
+        this.checksum = checksum;
+        this.ends = ends;
+        this.starts = starts;
+        this.lengths = lengths;
+    }
+
+    /***
+     * Maps a table saved with save(). Only the header is read here, the
+     * checksum is left to verify() so that opening stays constant time.
+     */
+    public static ChainTable open(String fileName) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(fileName, "r");
+             FileChannel channel = file.getChannel()) {
+            if (channel.size() < headerSize) {
+                throw new IOException(fileName + " is not a table file");
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != magic) {
+                throw new IOException(fileName + " is not a table file");
+            }
+            int fileVersion = buffer.getInt();
+            if (fileVersion != version) {
+                throw new IOException(fileName + " has table format version " + fileVersion
+                        + ", expected " + version + ", please regenerate it");
+            }
+            int plainText = buffer.getInt();
+            int mode = buffer.getInt();
+            int variant = buffer.getInt();
+            int distinguishedBits = buffer.getInt();
+            int chains = buffer.getInt();
+            int columns = buffer.getInt();
+            long seed = buffer.getLong();
+            long checksum = buffer.getLong();
+//            Lengths are always there for distinguished points and may be for Hellman chains
+            int arrays = (distinguishedBits > 0 || buffer.remaining() == chains * 6L) ? 3 : 2;
+            if (chains < 0 || buffer.remaining() != chains * 2L * arrays) {
+                throw new IOException(fileName + " is truncated");
+            }
+
+            buffer.limit(headerSize + chains * 2);
+            ShortBuffer ends = buffer.slice().asShortBuffer();
+            buffer.limit(headerSize + chains * 4).position(headerSize + chains * 2);
+            ShortBuffer starts = buffer.slice().asShortBuffer();
+            buffer.limit(headerSize + chains * 2 * arrays).position(headerSize + chains * 4);
+            ShortBuffer lengths = buffer.slice().asShortBuffer();
+            return new ChainTable(new ChainFunction(plainText, mode, variant), columns, distinguishedBits,
+                    seed, checksum, ends, starts, lengths);
+        }
+    }
+
+    public void save(String fileName) throws IOException {
+        int size = size();
+        ByteBuffer buffer = ByteBuffer.allocate(headerSize + size * 4 + lengths.limit() * 2);
+        buffer.putInt(magic).putInt(version)
+                .putInt(function.getPlainText()).putInt(function.getMode()).putInt(function.getVariant())
+                .putInt(distinguishedBits).putInt(size).putInt(columns)
+                .putLong(seed).putLong(checksum);
+        for (int i = 0; i < size; i++) {
+            buffer.putShort(ends.get(i));
+        }
+        for (int i = 0; i < size; i++) {
+            buffer.putShort(starts.get(i));
+        }
+        for (int i = 0; i < lengths.limit(); i++) {
+            buffer.putShort(lengths.get(i));
+        }
+        buffer.flip();
+
+//        A table another process has mapped must not change under it, so write
+//        a new file and move it over the old one
+        File file = new File(fileName);
+        File temp = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+        try {
+            try (FileOutputStream out = new FileOutputStream(temp);
+                 FileChannel channel = out.getChannel()) {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp.toPath());
+        }
+    }
+
+    /***
+     * True if the chains still match the checksum they were saved with
+     */
+    public boolean verify() {
+        return crc(ends, starts, lengths) == checksum;
+    }
+
+    private static long crc(ShortBuffer ends, ShortBuffer starts, ShortBuffer lengths) {
+        CRC32 crc = new CRC32();
+        for (ShortBuffer values : new ShortBuffer[]{ends, starts, lengths}) {
+            for (int i = 0; i < values.limit(); i++) {
+                short value = values.get(i);
+                crc.update(value >>> 8);
+                crc.update(value);
+            }
+        }
+        return crc.getValue();
+    }
+
+    public ChainFunction getFunction() {
+        return function;
+    }
+
+    /***
+     * Number of columns of a fixed length table, the longest chain allowed in a distinguished point table
+     */
+    public int getColumns() {
+        return columns;
+    }
+
+    /***
+     * Number of low bits that are zero in a distinguished point, 0 for fixed length chains
+     */
+    public int getDistinguishedBits() {
+        return distinguishedBits;
+    }
+
+    public boolean isDistinguishedPoint(int x) {
+        return (x & distinguishedMask) == 0;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    /***
+     * Bytes taken by the end, start and length arrays
+     */
+    public long memoryBytes() {
+        return size() * 4L + lengths.limit() * 2L;
+    }
+
+    public int size() {
+        return ends.limit();
+    }
+
+    public int end(int i) {
+        return ends.get(i) & 0xffff;
+    }
+
+    public int start(int i) {
+        return starts.get(i) & 0xffff;
+    }
+
+    /***
+     * Number of steps from the start to the end of chain i
+     */
+    public int length(int i) {
+        return (lengths.limit() > 0) ? lengths.get(i) & 0xffff : columns;
+    }
+
+    /***
+     * How often every key appears in a column of the table, counted on
+     * parallel partitions of chains and summed
+     */
+    public int[] visits() {
+        int partitions = (size() + chainsPerPartition - 1) / chainsPerPartition;
+        return IntStream.range(0, partitions).parallel()
+                .mapToObj(p -> visits(p * chainsPerPartition, Math.min(size(), (p + 1) * chainsPerPartition)))
+                .reduce(ChainTable::addVisits)
+                .orElse(new int[keySpaceSize]);
+    }
+
+    private int[] visits(int from, int to) {
+        int[] visits = new int[keySpaceSize];
+        for (int chain = from; chain < to; chain++) {
+            int x_j = start(chain);
+            for (int j = 0; j < length(chain); j++) {
+                visits[x_j]++;
+                x_j = function.step(x_j, j);
+            }
+        }
+        return visits;
+    }
+
+    private static int[] addVisits(int[] visits, int[] other) {
+        for (int key = 0; key < keySpaceSize; key++) {
+            visits[key] += other[key];
+        }
+        return visits;
+    }
+
+    /***
+     * Keys that appear in some column of the table, i.e. the keys a lookup can recover
+     */
+    public BitSet coveredKeys() {
+        int[] visits = visits();
+        BitSet covered = new BitSet(keySpaceSize);
+        for (int key = 0; key < keySpaceSize; key++) {
+            if (visits[key] > 0) {
+                covered.set(key);
+            }
+        }
+        return covered;
+    }
+
+    /***
+     * Index of the first chain ending in the given value, or -1 if none does
+     */
+    public int indexOf(int end) {
+        int low = 0;
+        int high = size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if ((ends.get(mid) & 0xffff) < end) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return (low < size() && (ends.get(low) & 0xffff) == end) ? low : -1;
+    }
+
+    /***
+     * Number of chains whose end point is shared with the chain before them
+     */
+    public int collidingEnds() {
+        int collisions = 0;
+        for (int i = 1; i < size(); i++) {
+            if (ends.get(i) == ends.get(i - 1)) {
+                collisions++;
+            }
+        }
+        return collisions;
+    }
+}
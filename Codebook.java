@@ -0,0 +1,55 @@
+/**
+ * Full codebook of one chosen plain text block: for every 16-bit cypher text,
+ * the keys that encrypt the plain text to it. With a 16-bit key space this is
+ * the whole time-memory trade-off collapsed into memory, a lookup is two array
+ * reads and never walks a chain.
+ * <p>
+ * Cypher text is mask XOR plain text, so the codebook of any plain text is
+ * KeyIndex with its masks relabelled: the keys for cypher text c are the keys
+ * of mask c XOR p. This is only a view that applies the XOR, all plain texts
+ * share the single in-memory KeyIndex and there is nothing to store on disk.
+ */
+public final class Codebook {
+    private final int plainText;
+
+    private Codebook(int plainText) {
+        this.plainText = plainText;
+    }
+
+    /***
+     * Codebook of the plain text, builds the shared KeyIndex on first use
+     */
+    public static Codebook build(int plainText) {
+        KeyIndex.count(0);
+        return new Codebook(plainText & 0xffff);
+    }
+
+    public int getPlainText() {
+        return plainText;
+    }
+
+    /***
+     * Bytes held in memory by the offsets and keys of KeyIndex
+     */
+    public long memoryBytes() {
+        return (KeystreamTable.keySpaceSize + 1) * 4L + KeystreamTable.keySpaceSize * 2L;
+    }
+
+    /***
+     * Number of keys that encrypt the plain text to the given cypher text
+     */
+    public int count(int cypherText) {
+        return KeyIndex.count(cypherText ^ plainText);
+    }
+
+    /***
+     * i-th key (in ascending order) that encrypts the plain text to the given cypher text
+     */
+    public int key(int cypherText, int i) {
+        return KeyIndex.key(cypherText ^ plainText, i);
+    }
+
+    public int[] keysFor(int cypherText) {
+        return KeyIndex.keysFor(cypherText ^ plainText);
+    }
+}
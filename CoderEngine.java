@@ -0,0 +1,46 @@
+/**
+ * Re-entrant version of Coder. Coder keeps the Park-Miller seed in a static
+ * field, so only one thread can encrypt at a time. Here the seed lives in a
+ * local variable, which makes every method safe to call from many threads
+ * while producing exactly the same blocks as Coder.encrypt/Coder.decrypt.
+ */
+public final class CoderEngine {
+    private static final int a = 16807;
+    private static final int m = 2147483647;
+    private static final int q = 127773;
+    private static final int r = 2836;
+    private static final int blockRange = 65536;
+
+    private CoderEngine() {
+    }
+
+    public static int encrypt(int key, int p) {
+        return code(key, p);
+    }
+
+    public static int decrypt(int key, int c) {
+        return code(key, c);
+    }
+
+    /***
+     * 16-bit keys are served from the precomputed KeystreamTable, anything
+     * else falls back to deriving the mask directly.
+     */
+    public static int code(int key, int block) {
+        if ((key & ~0xffff) == 0)
+            return KeystreamTable.mask(key) ^ block;
+        return mask(key) ^ block;
+    }
+
+    /***
+     * The 16-bit value that a key XORs onto every block, i.e. one step of
+     * the Park-Miller generator seeded with the key.
+     */
+    public static int mask(int key) {
+        int hi = key / q;
+        int lo = key % q;
+        int test = a * lo - r * hi;
+        int seed = (test > 0) ? test : test + m;
+        return seed % blockRange;
+    }
+}
@@ -39,7 +39,7 @@ public class DecryptAllBlocks
             {
                 String	s = fin.readWord();
                 int	c = Hex16.convert(s);
-                int	p = Coder.decrypt(key, c);
+                int	p = CoderEngine.decrypt(key, c);
                 String	out = String.format("0x%04x", p);
                 fout.println(out);
             }
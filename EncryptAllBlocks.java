@@ -39,7 +39,7 @@ public class EncryptAllBlocks
             {
                 String	s = fin.readWord();
                 int	p = Hex16.convert(s);
-                int	c = Coder.encrypt(key, p);
+                int	c = CoderEngine.encrypt(key, p);
                 String	out = String.format("0x%04x", c);
                 fout.println(out);
             }
@@ -11,6 +11,8 @@ package FormatIO;
 
 import	java.io.*;
 import	java.awt.*;
+import	java.nio.ByteBuffer;
+import	java.nio.channels.FileChannel;
 
 /**
  *  This is an input file.  The name of the file can be provided as an
@@ -18,6 +20,8 @@ import	java.awt.*;
  *  can be used, which will prompt for the file name using a FileDialog.
  *  Attempting to read past the end of file will generate an EofX
  *  exception, which can be caught in the normal way.
+ *  The file is read through its FileChannel a buffer at a time,
+ *  rather than one system call per character.
  */
 
 /*=====================================================*/
@@ -29,8 +33,13 @@ import	java.awt.*;
 /*
  * Data
  */
+	private	final	static	int	BUFFER_SIZE = 64 * 1024;
+
 	private	String	the_name;
 	private	FileInputStream	source;
+	private	FileChannel	channel;
+	private	ByteBuffer	buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		// bytes read but not yet returned
 	private	int	previous_char = '?';
 		// for PC style double newline characters
 
@@ -70,6 +79,9 @@ private	void	open()
 	try
 		{
 		source = new FileInputStream(the_name);
+		channel = source.getChannel();
+		buffer.clear();
+		buffer.flip();	// empty until the first fill()
 		}
 
 	catch(IOException x)
@@ -109,6 +121,22 @@ public	void	close()
 	/*  Input Routine  */
 	/*******************/
 
+/*
+ *  Refills the buffer from the file, false at end of file
+ */
+/*-------------------------------------------*/
+private	boolean	fill()	throws IOException
+/*-------------------------------------------*/
+	{
+	buffer.clear();
+	int	n;
+	do
+		n = channel.read(buffer);
+	while (n == 0);
+	buffer.flip();
+	return n > 0;
+	}
+
 /*-------------------------------*/
 protected	int	get_char()	throws EofX
 /*-------------------------------*/
@@ -123,12 +151,12 @@ protected	int	get_char()	throws EofX
 				// control character
 				// this copes with 
 			{
-			int	c = source.read();
-			if (c == -1)
+			if (!buffer.hasRemaining() && !fill())
 				{
 				set_eof();
 				throw new EofX();
 				}
+			int	c = buffer.get() & 0xff;
 
 				// This could be a UNIX newline (returned), or
 				// the second char of a PC newline (ignored)
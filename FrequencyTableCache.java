@@ -0,0 +1,118 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.CRC32;
+
+/**
+ * Compiled binary cache of the frequency tables. The first run parses a
+ * source .txt table into a fixed-size float[] and writes it next to the
+ * source as "source.kind.cache"; later runs memory-map that file instead of
+ * parsing text. The cache is rebuilt whenever the size or modification time
+ * of the source changes, or the stored checksum does not match.
+ * <p>
+ * File layout (big endian): magic, version, source length, source
+ * modification time, number of floats, CRC32 of the floats, then the floats.
+ */
+public final class FrequencyTableCache {
+    private static final int magic = 0x46545243;    // "FTRC"
+    private static final int version = 1;
+    private static final int headerSize = 4 + 4 + 8 + 8 + 4 + 8;
+
+    /***
+     * Parses the source table into the array that gets cached
+     */
+    public interface Compiler {
+        float[] compile(String sourceFile) throws IOException;
+    }
+
+    private FrequencyTableCache() {
+    }
+
+    public static float[] load(String sourceFile, String kind, Compiler compiler) throws IOException {
+        File source = new File(sourceFile);
+        File cache = new File(sourceFile + "." + kind + ".cache");
+
+        float[] table = read(cache, source);
+        if (table != null) {
+            return table;
+        }
+        table = compiler.compile(sourceFile);
+        try {
+            write(cache, source, table);
+        } catch (IOException e) {
+//            A read-only directory only costs the next run another parse
+            System.err.println("Could not write table cache " + cache + ": " + e.getMessage());
+        }
+        return table;
+    }
+
+    /***
+     * Maps the cache file and returns its floats, or null if it is missing,
+     * corrupt or out of date with the source
+     */
+    private static float[] read(File cache, File source) throws IOException {
+        if (!cache.isFile() || cache.length() < headerSize) {
+            return null;
+        }
+        try (RandomAccessFile file = new RandomAccessFile(cache, "r");
+             FileChannel channel = file.getChannel()) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != magic || buffer.getInt() != version
+                    || buffer.getLong() != source.length() || buffer.getLong() != source.lastModified()) {
+                return null;
+            }
+            int count = buffer.getInt();
+            long checksum = buffer.getLong();
+            if (count < 0 || buffer.remaining() != count * 4L) {
+                return null;
+            }
+            byte[] payload = new byte[count * 4];
+            buffer.get(payload);
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            if (crc.getValue() != checksum) {
+                return null;
+            }
+            float[] table = new float[count];
+            ByteBuffer.wrap(payload).asFloatBuffer().get(table);
+            return table;
+        }
+    }
+
+    /***
+     * Writes to a temporary file first, so concurrent runs never see half a cache
+     */
+    private static void write(File cache, File source, float[] table) throws IOException {
+        ByteBuffer payload = ByteBuffer.allocate(table.length * 4);
+        FloatBuffer floats = payload.asFloatBuffer();
+        floats.put(table);
+        CRC32 crc = new CRC32();
+        crc.update(payload.array());
+
+        ByteBuffer header = ByteBuffer.allocate(headerSize);
+        header.putInt(magic).putInt(version)
+                .putLong(source.length()).putLong(source.lastModified())
+                .putInt(table.length).putLong(crc.getValue());
+        header.flip();
+
+        File temp = File.createTempFile(cache.getName(), ".tmp", cache.getAbsoluteFile().getParentFile());
+        try {
+            try (FileOutputStream out = new FileOutputStream(temp);
+                 FileChannel channel = out.getChannel()) {
+                while (header.hasRemaining()) {
+                    channel.write(header);
+                }
+                while (payload.hasRemaining()) {
+                    channel.write(payload);
+                }
+            }
+            Files.move(temp.toPath(), cache.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp.toPath());
+        }
+    }
+}
@@ -0,0 +1,26 @@
+/**
+ * Helpers for the JSON reports of the batch tools and TableAnalyzer, which
+ * write their JSON by hand.
+ */
+public final class Json {
+
+    private Json() {
+    }
+
+    /***
+     * JSON string literal of s
+     */
+    public static String string(String s) {
+        StringBuilder out = new StringBuilder("\"");
+        for (char c : s.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                out.append('\\').append(c);
+            } else if (c < 32) {
+                out.append(String.format("\\u%04x", (int) c));
+            } else {
+                out.append(c);
+            }
+        }
+        return out.append('"').toString();
+    }
+}
@@ -6,13 +6,15 @@ import FormatIO.EofX;
 import FormatIO.FileIn;
 
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.util.BitSet;
 
 
 public class KPT {
     private String encryptedFile = "src/kpt_encrypted.txt";
     private String decryptedTextFile = "src/kpt_decrypted.txt";
     private String decryptedFileRoot = "src/kpt_decrypted";
-    private String initPlainText = "0x5769";
+    protected String initPlainText = "0x5769";
 
     /***
      * Extended class to convert hex-blocks to plain text without writing to file
@@ -28,19 +30,35 @@ public class KPT {
             StringWriter buffer = new StringWriter();
             try {
                 for (; ; ) {
-                    String s = fin.readWord();
-                    int i = Hex16.convert(s);
-                    int c0 = i / 256;
-                    int c1 = i % 256;
-                    buffer.write(((char) c0));
-                    if (c1 != 0)
-                        buffer.write((char) c1);
+                    writeBlock(buffer, fin.readWord());
                 }
             } catch (EofX x) {
             }
             return buffer.toString();
         }
 
+        /***
+         * Same conversion on hex-blocks already held in memory, one per line
+         */
+        static String toText(String blocks) {
+            StringWriter buffer = new StringWriter();
+            for (String s : blocks.split("\\n")) {
+                if (!s.isEmpty()) {
+                    writeBlock(buffer, s);
+                }
+            }
+            return buffer.toString();
+        }
+
+        private static void writeBlock(StringWriter buffer, String s) {
+            int i = Hex16.convert(s);
+            int c0 = i / 256;
+            int c1 = i % 256;
+            buffer.write(((char) c0));
+            if (c1 != 0)
+                buffer.write((char) c1);
+        }
+
     }
 
     /***
@@ -67,7 +85,7 @@ public class KPT {
                 for (; ; ) {
                     String s = fin.readWord();
                     int c = Hex16.convert(s);
-                    int p = Coder.decrypt(key, c);
+                    int p = CoderEngine.decrypt(key, c);
                     String out = String.format("0x%04x", p);
                     new_buffer.write(out + "\n");
                 }
@@ -82,56 +100,42 @@ public class KPT {
         }
     }
 
-    /***
-     * Extended class to encrypt given string using given key without writing to file
-     */
-    static class EncryptAllBlocksExtended extends EncryptAllBlocks {
-
-        private String key_string;
-
-        private EncryptAllBlocksExtended(String key_string) {
-            this.key_string = key_string;
-
-        }
-
-        private String getEncoded(String text) {
-            StringWriter new_buffer = new StringWriter();
-            int key = Hex16.convert(key_string);
-
-//            Initial plain text
-
-            int p = Hex16.convert(text);
-            int c = Coder.encrypt(key, p);
-
-            String out = String.format("0x%04x", c);
-
-            new_buffer.write(out);
-
-            return new_buffer.toString();
-        }
-
-        private void setKey(String new_key) {
-            this.key_string = new_key;
-        }
-
-    }
-
     public static void main(String[] args) {
         KPT kpt = new KPT();
-        String first_cypher_text_block = kpt.getFirstTextBlock(kpt.encryptedFile);
-        String key = "0x0000";
-
-        int keySpaceSize = (int) Math.pow(16, 4);
-        EncryptAllBlocksExtended enc = new EncryptAllBlocksExtended(key);
-        for (int i = 0; i <= keySpaceSize; i++) {
-            key = String.format("0x%04X", i);
-            enc.setKey(key);
-
-//          If key is found - break;
-            if (enc.getEncoded(kpt.initPlainText).equals(first_cypher_text_block)) {
-                break;
+        int firstCypherTextBlock = Hex16.convert(kpt.getFirstTextBlock(kpt.encryptedFile));
+        int plainTextBlock = Hex16.convert(kpt.initPlainText);
+
+        int[] candidates;
+        if (args.length > 0 && args[0].equals("scan")) {
+            candidates = scanAll(plainTextBlock, firstCypherTextBlock);
+        } else if (args.length > 0) {
+//            Every argument is a known plain text block, aligned with the start of the cypher text
+            int[] plainTextBlocks = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                plainTextBlocks[i] = Hex16.convert(args[i]);
+            }
+            int[] cypherTextBlocks = kpt.getTextBlocks(kpt.encryptedFile, args.length);
+            BitSet survivors = narrowKeys(plainTextBlocks, cypherTextBlocks);
+            candidates = survivors.stream().toArray();
+            System.out.println("Keys consistent with " + cypherTextBlocks.length + " known blocks: " + survivors.cardinality());
+            if (candidates.length > 1) {
+//                More known blocks cannot help, these keys produce the same mask
+                System.out.println(String.format("Indistinguishable, all share mask 0x%04X:",
+                        (plainTextBlocks[0] ^ cypherTextBlocks[0]) & 0xffff));
+            }
+            for (int candidate : candidates) {
+                System.out.println(String.format("0x%04X", candidate));
             }
+        } else {
+//            Cypher text is mask XOR plain text, so the reverse index gives every key at once
+            candidates = KeyIndex.candidates(plainTextBlock, firstCypherTextBlock);
         }
+        if (candidates.length == 0) {
+            System.out.println("No key matches the known plain text");
+            return;
+        }
+//        Lowest key first, as the linear scan used to return
+        String key = String.format("0x%04X", candidates[0]);
 
         System.out.println("INT key: " + Hex16.convert(key));
         System.out.println("HEX key: " + key);
@@ -151,10 +155,119 @@ public class KPT {
         System.out.println("DECRYPTED TEXT: " + b_t_ext.getText());
     }
 
+    /***
+     * Decrypts a whole cypher text file with the key and converts it back to text, without writing files
+     */
+    static String decryptText(String key, String fileName) {
+        return Block2TextExtended.toText(new DecryptAllBlocksExtended(key, fileName).getDecoded());
+    }
+
+    /***
+     * Keys consistent with every known block. Cypher text is mask(key) XOR
+     * plain text, so each pair pins down the mask and nothing more: keys that
+     * share a mask encrypt every block alike and no number of known blocks
+     * can tell them apart. Further blocks are only checked to imply the same
+     * mask as the first one; if any does not, the known plain text is wrong
+     * and no key survives.
+     */
+    static BitSet narrowKeys(int[] plainTextBlocks, int[] cypherTextBlocks) {
+        BitSet survivors = new BitSet(KeystreamTable.keySpaceSize);
+        int blocks = Math.min(plainTextBlocks.length, cypherTextBlocks.length);
+        if (blocks == 0) {
+            return survivors;
+        }
+        int mask = (plainTextBlocks[0] ^ cypherTextBlocks[0]) & 0xffff;
+        for (int i = 1; i < blocks; i++) {
+            if (((plainTextBlocks[i] ^ cypherTextBlocks[i]) & 0xffff) != mask) {
+                return survivors;
+            }
+        }
+        for (int key : KeyIndex.keysFor(mask)) {
+            survivors.set(key);
+        }
+        return survivors;
+    }
+
+    /***
+     * Brute-force search on plain ints: returns the first key from fromKey
+     * onwards that encrypts plainText to cypherText, or -1 if there is none.
+     * Nothing is allocated per candidate key.
+     */
+    static int scanKey(int plainText, int cypherText, int fromKey) {
+        for (int key = fromKey; key < KeystreamTable.keySpaceSize; key++) {
+            if (KeystreamTable.encrypt(key, plainText) == cypherText) {
+                return key;
+            }
+        }
+        return -1;
+    }
+
+    /***
+     * Walks the whole key space with scanKey and reports how many bytes the
+     * search allocated on this thread. The hot loop must not allocate, so after
+     * warm-up scans any allocation fails the run with a non-zero exit status.
+     */
+    private static int[] scanAll(int plainText, int cypherText) {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        int[] found = new int[KeystreamTable.keySpaceSize];
+        int count = 0;
+
+//        Make sure the keystream is built and the loop compiled before measuring
+        KeystreamTable.mask(0);
+        for (int warmUp = 0; warmUp < 20; warmUp++) {
+            count = 0;
+            for (int key = scanKey(plainText, cypherText, 0); key >= 0; key = scanKey(plainText, cypherText, key + 1)) {
+                found[count++] = key;
+            }
+        }
+        threads.getThreadAllocatedBytes(threadId);
+        long before = threads.getThreadAllocatedBytes(threadId);
+        count = 0;
+        for (int key = scanKey(plainText, cypherText, 0); key >= 0; key = scanKey(plainText, cypherText, key + 1)) {
+            found[count++] = key;
+        }
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+        System.out.println("Scanned " + KeystreamTable.keySpaceSize + " keys, allocated " + allocated + " bytes");
+        if (allocated > 0) {
+            System.out.println("The key scan must not allocate");
+            System.exit(1);
+        }
+        int[] candidates = new int[count];
+        System.arraycopy(found, 0, candidates, 0, count);
+        return candidates;
+    }
+
+    /***
+     * Helper method to read the first count hex-blocks of a given file as integers
+     */
+    protected int[] getTextBlocks(String filename, int count) {
+        int[] blocks = new int[count];
+        int read = 0;
+        try (BufferedReader bufferedReader = new BufferedReader(new FileReader(filename))) {
+            String line;
+            while (read < count && (line = bufferedReader.readLine()) != null) {
+                blocks[read++] = Hex16.convert(line);
+            }
+        } catch (FileNotFoundException ex) {
+            System.out.println(
+                    "Unable to open file '" + filename + "'");
+            System.exit(1);
+        } catch (IOException ex) {
+            System.out.println("Error reading file '" + filename + "'");
+            System.exit(1);
+        }
+        int[] found = new int[read];
+        System.arraycopy(blocks, 0, found, 0, read);
+        return found;
+    }
+
     /***
      * Helper method to extract first hex-block from a given file
      */
-    private String getFirstTextBlock(String filename) {
+    protected String getFirstTextBlock(String filename) {
         String line;
         try {
             FileReader fileReader = new FileReader(filename);
@@ -0,0 +1,224 @@
+/**
+ * Batch version of KPT: recovers the keys of many cypher text files in one
+ * JVM run. Every file shares the same KeyIndex and is processed on a bounded
+ * worker pool, the results and the throughput go to a single JSON report.
+ * <p>
+ * Usage: KPTBatch (directory | manifest) [report file] [threads]
+ * <p>
+ * A directory means every file in it is a cypher text starting with KPT's
+ * default known plain text. A manifest has one line per file:
+ * "cypherFile, 0x5769 0x7468 ..." with the known plain text blocks after the comma.
+ */
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class KPTBatch {
+    private String reportFile = "src/kpt_batch_report.json";
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    /***
+     * One cypher text file and the plain text blocks known to start it,
+     * error is set when its manifest line could not be read
+     */
+    static class Job {
+        private final String fileName;
+        private final int[] plainTextBlocks;
+        private String error;
+
+        Job(String fileName, int[] plainTextBlocks) {
+            this.fileName = fileName;
+            this.plainTextBlocks = plainTextBlocks;
+        }
+    }
+
+    /***
+     * Outcome of a single file, error is null when the file was processed
+     */
+    static class Result {
+        private final Job job;
+        private int[] keys = new int[0];
+        private String decryptedText = "";
+        private String error;
+
+        Result(Job job) {
+            this.job = job;
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 1) {
+            System.out.println("Usage: KPTBatch (directory | manifest) [report file] [threads]");
+            System.exit(1);
+        }
+        KPTBatch batch = new KPTBatch();
+        if (args.length > 1) {
+            batch.reportFile = args[1];
+        }
+        if (args.length > 2) {
+//            The pool needs at least one worker, and the report shows the pool size used
+            batch.threads = Math.max(1, Integer.parseInt(args[2]));
+        }
+
+        List<Job> jobs = batch.readJobs(new File(args[0]));
+        long start = System.nanoTime();
+        List<Result> results = batch.run(jobs);
+        long elapsed = System.nanoTime() - start;
+
+        batch.writeReport(results, elapsed);
+        System.out.println("Processed " + results.size() + " files in " + elapsed / 1000000 + " ms, "
+                + String.format("%.1f", results.size() / (elapsed / 1e9)) + " files/s");
+        System.out.println("Report written to " + batch.reportFile);
+    }
+
+    /***
+     * Builds the job list from a directory of cypher text files or from a manifest
+     */
+    private List<Job> readJobs(File source) throws IOException {
+        List<Job> jobs = new ArrayList<>();
+        if (source.isDirectory()) {
+            int[] plainTextBlocks = {Hex16.convert(new KPT().initPlainText)};
+            File[] files = source.listFiles(File::isFile);
+            if (files != null) {
+                Arrays.sort(files);
+                for (File file : files) {
+                    jobs.add(new Job(file.getPath(), plainTextBlocks));
+                }
+            }
+            return jobs;
+        }
+
+        try (BufferedReader bufferedReader = new BufferedReader(new FileReader(source))) {
+            String line;
+            while ((line = bufferedReader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] parts = line.split(",", 2);
+                String[] words = (parts.length > 1) ? parts[1].trim().split("\\s+") : new String[0];
+                int[] plainTextBlocks = new int[words.length];
+                String error = null;
+                for (int i = 0; i < words.length; i++) {
+//                    Hex16 reads exactly four digits after "0x" and throws on anything shorter
+                    if (!words[i].matches("0[xX][0-9a-fA-F]{4}")) {
+                        error = "Malformed plain text block '" + words[i] + "', expected e.g. 0x5769";
+                        break;
+                    }
+                    plainTextBlocks[i] = Hex16.convert(words[i]);
+                }
+                if (plainTextBlocks.length == 0) {
+                    plainTextBlocks = new int[]{Hex16.convert(new KPT().initPlainText)};
+                }
+                Job job = new Job(parts[0].trim(), plainTextBlocks);
+                job.error = error;
+                jobs.add(job);
+            }
+        }
+        return jobs;
+    }
+
+    /***
+     * Runs every job on the worker pool, results keep the order of the jobs
+     */
+    private List<Result> run(List<Job> jobs) throws InterruptedException {
+//        Build the shared index up front rather than inside the first worker
+        KeyIndex.count(0);
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<Result>> futures = new ArrayList<>();
+        for (Job job : jobs) {
+            futures.add(pool.submit(() -> recover(job)));
+        }
+        pool.shutdown();
+
+        List<Result> results = new ArrayList<>();
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                results.add(futures.get(i).get());
+            } catch (ExecutionException e) {
+                Result failed = new Result(jobs.get(i));
+                failed.error = String.valueOf(e.getCause());
+                results.add(failed);
+            }
+        }
+        return results;
+    }
+
+    /***
+     * Per-file step: narrow the keys with the known blocks, then decrypt
+     * the whole file with the lowest surviving key
+     */
+    private static Result recover(Job job) {
+        Result result = new Result(job);
+        if (job.error != null) {
+            result.error = job.error;
+            return result;
+        }
+//        KPT's readers exit the JVM on a missing file, so check first
+        if (!new File(job.fileName).canRead()) {
+            result.error = "Unable to open file '" + job.fileName + "'";
+            return result;
+        }
+
+        KPT kpt = new KPT();
+        int[] cypherTextBlocks = kpt.getTextBlocks(job.fileName, job.plainTextBlocks.length);
+        BitSet survivors = KPT.narrowKeys(job.plainTextBlocks, cypherTextBlocks);
+        result.keys = survivors.stream().toArray();
+        if (result.keys.length == 0) {
+            result.error = "No key matches the known plain text";
+            return result;
+        }
+
+        String key = String.format("0x%04X", result.keys[0]);
+        result.decryptedText = KPT.decryptText(key, job.fileName);
+        return result;
+    }
+
+    private void writeReport(List<Result> results, long elapsedNanos) throws IOException {
+        int recovered = 0;
+        for (Result result : results) {
+            if (result.error == null) {
+                recovered++;
+            }
+        }
+
+        try (PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(reportFile)))) {
+            writer.println("{");
+            writer.println("  \"files\": " + results.size() + ",");
+            writer.println("  \"recovered\": " + recovered + ",");
+            writer.println("  \"threads\": " + threads + ",");
+            writer.println("  \"elapsedMs\": " + elapsedNanos / 1000000 + ",");
+            writer.println("  \"filesPerSecond\": " + String.format(Locale.ROOT, "%.1f", results.size() / (elapsedNanos / 1e9)) + ",");
+            writer.println("  \"results\": [");
+            for (int i = 0; i < results.size(); i++) {
+                Result result = results.get(i);
+                StringBuilder keys = new StringBuilder();
+                for (int key : result.keys) {
+                    if (keys.length() > 0) {
+                        keys.append(", ");
+                    }
+                    keys.append(Json.string(String.format("0x%04X", key)));
+                }
+                writer.print("    {\"file\": " + Json.string(result.job.fileName)
+                        + ", \"keys\": [" + keys + "]");
+                if (result.error == null) {
+                    writer.print(", \"text\": " + Json.string(result.decryptedText));
+                } else {
+                    writer.print(", \"error\": " + Json.string(result.error));
+                }
+                writer.println((i < results.size() - 1) ? "}," : "}");
+            }
+            writer.println("  ]");
+            writer.println("}");
+        }
+    }
+}
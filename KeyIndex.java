@@ -0,0 +1,63 @@
+/**
+ * Reverse of KeystreamTable: for every 16-bit mask, the keys that produce it.
+ * Since a ciphertext block is just mask XOR plaintext, one known
+ * plaintext/ciphertext pair pins down the mask and this index turns it into
+ * every candidate key with a single lookup.
+ * <p>
+ * Stored CSR style: keys sorted by mask (and by key within a mask) plus an
+ * offsets array, 65537 ints + 65536 shorts in total.
+ */
+public final class KeyIndex {
+    private static final int keySpaceSize = KeystreamTable.keySpaceSize;
+
+    private KeyIndex() {
+    }
+
+    private static class Holder {
+        private static final int[] offsets = new int[keySpaceSize + 1];
+        private static final short[] keys = new short[keySpaceSize];
+
+        static {
+//            Counting sort keys by their mask, keeping keys ascending per mask
+            for (int key = 0; key < keySpaceSize; key++) {
+                offsets[KeystreamTable.mask(key) + 1]++;
+            }
+            for (int mask = 0; mask < keySpaceSize; mask++) {
+                offsets[mask + 1] += offsets[mask];
+            }
+            int[] next = offsets.clone();
+            for (int key = 0; key < keySpaceSize; key++) {
+                keys[next[KeystreamTable.mask(key)]++] = (short) key;
+            }
+        }
+    }
+
+    /***
+     * Number of keys that produce the given mask
+     */
+    public static int count(int mask) {
+        return Holder.offsets[mask + 1] - Holder.offsets[mask];
+    }
+
+    /***
+     * i-th key (in ascending order) that produces the given mask
+     */
+    public static int key(int mask, int i) {
+        return Holder.keys[Holder.offsets[mask] + i] & 0xffff;
+    }
+
+    public static int[] keysFor(int mask) {
+        int[] found = new int[count(mask)];
+        for (int i = 0; i < found.length; i++) {
+            found[i] = key(mask, i);
+        }
+        return found;
+    }
+
+    /***
+     * All keys that encrypt the plain text block to the cypher text block
+     */
+    public static int[] candidates(int plainText, int cypherText) {
+        return keysFor((plainText ^ cypherText) & 0xffff);
+    }
+}
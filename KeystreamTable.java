@@ -0,0 +1,44 @@
+import java.util.stream.IntStream;
+
+/**
+ * The whole key space is only 65536 keys, so the mask every key XORs onto a
+ * block fits in a 128 KB short[]. The table is built once, in parallel, the
+ * first time it is needed; after that encrypting or decrypting a block is a
+ * single array lookup plus an XOR.
+ */
+public final class KeystreamTable {
+    public static final int keySpaceSize = 65536;
+
+    private KeystreamTable() {
+    }
+
+    /***
+     * Lazy holder, the table is only built when a mask is first requested
+     */
+    private static class Holder {
+        private static final short[] masks = build();
+    }
+
+    /***
+     * Kept outside of Holder on purpose: the parallel workers must not touch
+     * a class that is still being initialised, or they would block on it.
+     */
+    private static short[] build() {
+        short[] masks = new short[keySpaceSize];
+        IntStream.range(0, keySpaceSize).parallel()
+                .forEach(key -> masks[key] = (short) CoderEngine.mask(key));
+        return masks;
+    }
+
+    public static int mask(int key) {
+        return Holder.masks[key] & 0xffff;
+    }
+
+    public static int encrypt(int key, int p) {
+        return mask(key) ^ p;
+    }
+
+    public static int decrypt(int key, int c) {
+        return mask(key) ^ c;
+    }
+}
@@ -0,0 +1,13 @@
+/**
+ * Scores how much a candidate plain text looks like English. Higher is
+ * better, so CTO can rank every key by the score alone in a single pass.
+ * <p>
+ * Implementations must be safe to share between threads.
+ */
+public interface LanguageModel {
+
+    /***
+     * Score of the first length characters of text
+     */
+    double score(char[] text, int length);
+}
@@ -0,0 +1,175 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Letter frequency scoring for CTO on plain arrays. Monogram frequencies are
+ * held in a float[26], normalised bigram frequencies in a float[26 * 26], and a
+ * candidate text is counted into int[] tables indexed by letter in one pass,
+ * without regular expressions, boxing or allocation.
+ * <p>
+ * Scores match CTO's original HashMap based getMse and bigram score: a letter
+ * is counted from its second occurrence on, and the last bigram of every
+ * word is left out.
+ * <p>
+ * The frequency tables are shared, the counters are not: use one copy() per thread.
+ */
+public class LetterScorer {
+    private static final int letters = 26;
+
+    private final float[] monograms;
+    private final boolean[] hasMonogram;
+    private final float[] bigrams;
+
+    private final int[] letterCounts = new int[letters];
+    private final int[] bigramCounts = new int[letters * letters];
+    private int textLength;
+
+    public LetterScorer(String monogramFile, String bigramFile) throws IOException {
+//        Absent monograms are cached as NaN
+        monograms = FrequencyTableCache.load(monogramFile, "monograms", LetterScorer::readMonograms);
+        hasMonogram = new boolean[letters];
+        for (int i = 0; i < letters; i++) {
+            hasMonogram[i] = !Float.isNaN(monograms[i]);
+        }
+        bigrams = FrequencyTableCache.load(bigramFile, "bigrams", LetterScorer::readBigrams);
+    }
+
+    private LetterScorer(LetterScorer shared) {
+        monograms = shared.monograms;
+        hasMonogram = shared.hasMonogram;
+        bigrams = shared.bigrams;
+    }
+
+    /***
+     * Another scorer over the same tables with its own counters
+     */
+    public LetterScorer copy() {
+        return new LetterScorer(this);
+    }
+
+    /***
+     * Reads the monogram frequency table, dividing frequencies by 100 as they are in % in the file
+     */
+    private static float[] readMonograms(String fileName) throws IOException {
+        float[] monograms = new float[letters];
+        Arrays.fill(monograms, Float.NaN);
+        try (BufferedReader buffer = new BufferedReader(new FileReader(fileName))) {
+            String line;
+            while ((line = buffer.readLine()) != null) {
+                String[] parts = line.split(":");
+                int letter = letterIndex(parts[0].trim());
+                if (letter >= 0) {
+                    monograms[letter] = Float.parseFloat(parts[1].trim()) / 100;
+                }
+            }
+        }
+        return monograms;
+    }
+
+    /***
+     * Reads the bigram frequency table, normalised by the first (highest) frequency
+     */
+    private static float[] readBigrams(String fileName) throws IOException {
+        float[] bigrams = new float[letters * letters];
+        try (BufferedReader buffer = new BufferedReader(new FileReader(fileName))) {
+            String line;
+            boolean first = true;
+            float denom = 1;
+            while ((line = buffer.readLine()) != null) {
+                String[] parts = line.split(",");
+                if (first) {
+                    denom = Float.parseFloat(parts[1].trim());
+                    first = false;
+                }
+                String bigram = parts[0].trim();
+                if (bigram.length() == 2 && letterIndex(bigram.substring(0, 1)) >= 0
+                        && letterIndex(bigram.substring(1)) >= 0) {
+                    bigrams[letterIndex(bigram.substring(0, 1)) * letters + letterIndex(bigram.substring(1))] =
+                            Float.parseFloat(parts[1].trim()) / denom;
+                }
+            }
+        }
+        return bigrams;
+    }
+
+    private static int letterIndex(String s) {
+        return (s.length() == 1) ? letter(s.charAt(0)) : -1;
+    }
+
+    /***
+     * 0-25 for an English letter of either case, -1 for anything else
+     */
+    private static int letter(char ch) {
+        if (ch >= 'a' && ch <= 'z')
+            return ch - 'a';
+        if (ch >= 'A' && ch <= 'Z')
+            return ch - 'A';
+        return -1;
+    }
+
+    private static boolean isWordChar(char ch) {
+        return letter(ch) >= 0 || (ch >= '0' && ch <= '9') || ch == '_';
+    }
+
+    /***
+     * Counts the letters and bigrams of the first length characters of text in
+     * one pass. A bigram is only counted once the word continues past it, so
+     * the last bigram of each word is skipped as in the original counter.
+     */
+    public void count(char[] text, int length) {
+        Arrays.fill(letterCounts, 0);
+        Arrays.fill(bigramCounts, 0);
+        textLength = length;
+
+        int wordLength = 0;
+        int previous = -1;
+        int beforePrevious = -1;
+        for (int i = 0; i < length; i++) {
+            char ch = text[i];
+            if (!isWordChar(ch)) {
+                wordLength = 0;
+                continue;
+            }
+            int letter = letter(ch);
+            if (letter >= 0) {
+                letterCounts[letter]++;
+            }
+            wordLength++;
+            if (wordLength >= 3 && beforePrevious >= 0 && previous >= 0) {
+                bigramCounts[beforePrevious * letters + previous]++;
+            }
+            beforePrevious = previous;
+            previous = letter;
+        }
+    }
+
+    /***
+     * Mean Squared Error between the counted letter frequencies and typical English text
+     */
+    public float mse() {
+        float mse = 0;
+        for (int i = 0; i < letters; i++) {
+            if (!hasMonogram[i]) {
+                continue;
+            }
+            float letterOcc = (letterCounts[i] == 0) ? 0 : (float) (letterCounts[i] - 1) / textLength;
+            mse += Math.pow(monograms[i] - letterOcc, 2);
+        }
+        return mse;
+    }
+
+    /***
+     * Sum of the 'popularity' of every counted bigram times its number of occurrences
+     */
+    public float bigramScore() {
+        float score = 0;
+        for (int i = 0; i < bigramCounts.length; i++) {
+            if (bigramCounts[i] != 0) {
+                score += bigrams[i] * bigramCounts[i];
+            }
+        }
+        return score;
+    }
+}
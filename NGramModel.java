@@ -0,0 +1,234 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Letter n-gram language model (monogram, bigram or trigram) holding the log
+ * probability of every n-gram in a dense float[26^n], indexed by the letters
+ * in base 26, and of every shorter prefix, marginalised from it.
+ * <p>
+ * A text is scored by its average log probability per character, and every
+ * character is scored. A letter adds its log probability given the letters
+ * before it in the same word, up to n - 1 of them, so the first letters of a
+ * word and words shorter than n are scored from the marginals. Word
+ * boundaries are scored from the English word length distribution: a word
+ * that ends adds the log probability of ending at its length, a letter that
+ * carries it on the log probability of going on. Punctuation adds a fixed
+ * log probability, a space after a space and any other character the log
+ * probability given to unseen n-grams. Spacing out letters therefore cannot
+ * hide them from the model.
+ * <p>
+ * Tables are read with the same formats as CTO's frequency files, "A :  8.55"
+ * (percent) for monograms and "th,100272945963" (counts) for the rest. Every
+ * file is only read once per run, and through FrequencyTableCache after the
+ * first run.
+ */
+public class NGramModel implements LanguageModel {
+    private static final int letters = 26;
+//    Share of English words of length 1, 2, ... 15 in % (Google Books counts), longer words share the rest
+    private static final double[] wordLengths = {2.998, 17.651, 20.511, 14.787, 10.700, 8.388, 7.939, 5.943,
+            4.437, 3.076, 1.761, 0.958, 0.518, 0.222, 0.076};
+//    endLogProbs[l] and goOnLogProbs[l]: log probability that a word of length l ends there or goes on
+    private static final float[] endLogProbs = new float[wordLengths.length + 2];
+    private static final float[] goOnLogProbs = new float[wordLengths.length + 2];
+    private static final String punctuation = ".,;:!?'\"-()";
+    private static final float punctuationLogProb = (float) Math.log(0.02);
+
+    static {
+        double remaining = 100;
+        for (int l = 1; l <= wordLengths.length; l++) {
+            endLogProbs[l] = (float) Math.log(wordLengths[l - 1] / remaining);
+            goOnLogProbs[l] = (float) Math.log(1 - wordLengths[l - 1] / remaining);
+            remaining -= wordLengths[l - 1];
+        }
+//        Words past the table end at an even rate
+        endLogProbs[wordLengths.length + 1] = (float) Math.log(0.5);
+        goOnLogProbs[wordLengths.length + 1] = (float) Math.log(0.5);
+    }
+    private static final Map<String, NGramModel> loaded = new HashMap<>();
+
+    private final int order;
+    private final float[] logProbs;
+    private final float unseenLogProb;
+//    prefixLogProbs[k] holds the log probability of every k letters, prefixLogProbs[order] == logProbs
+    private final float[][] prefixLogProbs;
+
+    private NGramModel(int order, float[] logProbs, float unseenLogProb) {
+        this.order = order;
+        this.logProbs = logProbs;
+        this.unseenLogProb = unseenLogProb;
+        this.prefixLogProbs = new float[order + 1][];
+        prefixLogProbs[order] = logProbs;
+        double[] probs = new double[logProbs.length];
+        for (int i = 0; i < probs.length; i++) {
+            probs[i] = Math.exp(logProbs[i]);
+        }
+        for (int k = order - 1; k >= 1; k--) {
+//            Sum out the last letter
+            double[] prefixProbs = new double[probs.length / letters];
+            for (int i = 0; i < probs.length; i++) {
+                prefixProbs[i / letters] += probs[i];
+            }
+            prefixLogProbs[k] = new float[prefixProbs.length];
+            for (int i = 0; i < prefixProbs.length; i++) {
+                prefixLogProbs[k][i] = (float) Math.log(prefixProbs[i]);
+            }
+            probs = prefixProbs;
+        }
+    }
+
+    public static NGramModel monograms(String fileName) throws IOException {
+        return load(fileName, 1, ":");
+    }
+
+    public static NGramModel bigrams(String fileName) throws IOException {
+        return load(fileName, 2, ",");
+    }
+
+    public static NGramModel trigrams(String fileName) throws IOException {
+        return load(fileName, 3, ",");
+    }
+
+    private static synchronized NGramModel load(String fileName, int order, String separator) throws IOException {
+        String cacheKey = order + ":" + fileName;
+        NGramModel model = loaded.get(cacheKey);
+        if (model == null) {
+//            Log probabilities followed by the unseen log probability
+            float[] compiled = FrequencyTableCache.load(fileName, "ngram" + order,
+                    f -> fromCounts(order, readCounts(f, order, separator)).compiled());
+            model = new NGramModel(order, Arrays.copyOf(compiled, compiled.length - 1), compiled[compiled.length - 1]);
+            loaded.put(cacheKey, model);
+        }
+        return model;
+    }
+
+    /***
+     * Reads the table into a dense array of counts, skipping lines that are
+     * not n letters followed by a number
+     */
+    private static double[] readCounts(String fileName, int order, String separator) throws IOException {
+        double[] counts = new double[size(order)];
+        try (BufferedReader buffer = new BufferedReader(new FileReader(fileName))) {
+            String line;
+            while ((line = buffer.readLine()) != null) {
+                String[] parts = line.split(separator);
+                if (parts.length < 2) {
+                    continue;
+                }
+                int index = index(parts[0].trim(), order);
+                if (index >= 0) {
+                    counts[index] = Double.parseDouble(parts[1].trim());
+                }
+            }
+        }
+        return counts;
+    }
+
+    /***
+     * Turns counts (or percentages) into log probabilities. Unseen n-grams get
+     * the log of a hundredth of a single occurrence, the usual floor.
+     */
+    static NGramModel fromCounts(int order, double[] counts) {
+        double total = 0;
+        for (double count : counts) {
+            total += count;
+        }
+        float unseenLogProb = (float) Math.log(0.01 / Math.max(total, 1));
+        float[] logProbs = new float[counts.length];
+        Arrays.fill(logProbs, unseenLogProb);
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] > 0) {
+                logProbs[i] = (float) Math.log(counts[i] / total);
+            }
+        }
+        return new NGramModel(order, logProbs, unseenLogProb);
+    }
+
+    private float[] compiled() {
+        float[] compiled = Arrays.copyOf(logProbs, logProbs.length + 1);
+        compiled[logProbs.length] = unseenLogProb;
+        return compiled;
+    }
+
+    private static int size(int order) {
+        int size = 1;
+        for (int i = 0; i < order; i++) {
+            size *= letters;
+        }
+        return size;
+    }
+
+    private static int index(String ngram, int order) {
+        if (ngram.length() != order) {
+            return -1;
+        }
+        int index = 0;
+        for (int i = 0; i < order; i++) {
+            int letter = letter(ngram.charAt(i));
+            if (letter < 0) {
+                return -1;
+            }
+            index = index * letters + letter;
+        }
+        return index;
+    }
+
+    /***
+     * 0-25 for an English letter of either case, -1 for anything else
+     */
+    private static int letter(char ch) {
+        if (ch >= 'a' && ch <= 'z')
+            return ch - 'a';
+        if (ch >= 'A' && ch <= 'Z')
+            return ch - 'A';
+        return -1;
+    }
+
+    @Override
+    public double score(char[] text, int length) {
+        if (length == 0) {
+            return unseenLogProb;
+        }
+        int size = logProbs.length;
+        double score = 0;
+        int index = 0;
+        int run = 0;
+        int wordLength = 0;
+        boolean afterSpace = true;
+        for (int i = 0; i < length; i++) {
+            char ch = text[i];
+            int letter = letter(ch);
+            if (letter < 0) {
+                if (wordLength > 0) {
+                    score += endLogProbs[Math.min(wordLength, endLogProbs.length - 1)];
+                } else if (ch == ' ' && afterSpace) {
+                    score += unseenLogProb;
+                }
+                if (punctuation.indexOf(ch) >= 0) {
+                    score += punctuationLogProb;
+                } else if (ch != ' ') {
+                    score += unseenLogProb;
+                }
+                run = 0;
+                wordLength = 0;
+                afterSpace = (ch == ' ');
+                continue;
+            }
+            afterSpace = false;
+            if (wordLength > 0) {
+                score += goOnLogProbs[Math.min(wordLength, goOnLogProbs.length - 1)];
+            }
+            wordLength++;
+            index = (index * letters + letter) % size;
+            run = Math.min(run + 1, order);
+//            log P(letter | the run - 1 letters before it in this word)
+            score += prefixLogProbs[run][index % size(run)];
+            if (run > 1)
+                score -= prefixLogProbs[run - 1][(index % size(run)) / letters];
+        }
+        return score / length;
+    }
+}
@@ -3,29 +3,180 @@
  */
 
 import java.io.*;
-import java.util.HashMap;
-import java.util.Random;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 public class TMT1 {
-    private HashMap<Integer, Integer> table;
+    private ChainTable table;
     protected String plainTextFile = "src/tmt1_plain.txt";
     protected int tableChains = 256;
     protected int tableColumns = 256;
     protected String tableName = "src/table.txt";
+    protected String binaryTableName = "src/table.bin";
     protected String cypherTextFile = "src/tmt_encrypted.txt";
     protected String decryptedTextFile = "src/tmt_decrypted.txt";
     protected String decryptedFileRoot = "src/tmt_decrypted";
+    protected int chainsPerPartition = 64;
+    protected long seed = System.nanoTime();
+    protected int mode = ChainFunction.hellman;
+    protected int variant = 0;
+    protected int distinguishedBits = 0;
+    protected int tableIndex = 0;
+    protected int maxTables = 32;
+    protected boolean checkpoint = false;
 
     public TMT1() {
-        this.table = new HashMap<>();
+        this.table = new ChainTable(new ChainFunction(0, ChainFunction.hellman, 0), 0, 0, new int[0], new int[0]);
     }
 
-    public static void main(String[] args) throws FileNotFoundException {
+    public static void main(String[] args) throws IOException {
         TMT1 tmt1 = new TMT1();
+        boolean text = false;
+        int tables = 1;
+        double targetCoverage = 0;
+        boolean seedSet = false;
+//        Options: -seed <RNG seed, the same seed always gives the same table>
+//        -text (also write the table in the old text format)
+//        -rainbow (a different reduction in every column instead of Hellman chains)
+//        -variant <reduction variant, 0 with Hellman chains gives the original chains>
+//        -dp <bits> (Hellman chains that end at the first key with that many low zero bits,
+//        up to tableColumns steps long)
+//        -tables <number of tables, each with the next reduction variant>
+//        -coverage <percent of the key space, add tables until it is covered or there are -tables of them>
+//        -chains <number of chains per table>
+//        -checkpoint (save finished partitions next to the table; an interrupted run resumes from them,
+//        and a later run with more -chains only generates the new ones)
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-seed":
+                    tmt1.seed = Long.parseLong(args[++i]);
+                    seedSet = true;
+                    break;
+                case "-chains":
+                    tmt1.tableChains = Integer.parseInt(args[++i]);
+                    break;
+                case "-checkpoint":
+                    tmt1.checkpoint = true;
+                    break;
+                case "-rainbow":
+                    tmt1.mode = ChainFunction.rainbow;
+                    break;
+                case "-variant":
+                    tmt1.variant = Integer.parseInt(args[++i]);
+                    break;
+                case "-dp":
+                    tmt1.distinguishedBits = Integer.parseInt(args[++i]);
+                    break;
+                case "-tables":
+                    tables = Integer.parseInt(args[++i]);
+                    tmt1.maxTables = tables;
+                    break;
+                case "-coverage":
+                    targetCoverage = Double.parseDouble(args[++i]);
+                    tables = tmt1.maxTables;
+                    break;
+                case "-text":
+                    text = true;
+                    break;
+                default:
+                    System.out.println("Unknown option " + args[i]);
+                    System.exit(1);
+            }
+        }
+        if (tmt1.distinguishedBits > 0 && (tmt1.mode == ChainFunction.rainbow
+                || tmt1.distinguishedBits > 15 || tmt1.tableColumns > 0xffff)) {
+            System.out.println("Distinguished points need Hellman chains, 1-15 bits and at most 65535 columns");
+            System.exit(1);
+        }
+//        The text format only holds end and start, TMT2 reads it back as fixed-length original chains
+        if (text && (tmt1.distinguishedBits > 0 || tmt1.mode == ChainFunction.rainbow || tmt1.variant != 0)) {
+            System.out.println("The text format only holds Hellman chains of variant 0 without distinguished points");
+            System.exit(1);
+        }
         int plainTextBlock = tmt1.getPlainTextBlock(tmt1.plainTextFile);
+//        Resuming needs the seed the checkpoints were generated with
+        if (tmt1.checkpoint && !seedSet) {
+            Long stored = ChainSegments.storedSeed(tmt1.segmentDirectory());
+            if (stored != null) {
+                tmt1.seed = stored;
+            }
+        }
+        System.out.println("Table seed: " + tmt1.seed);
+
+//        Every table has its own reduction variant, so their chains are independent
+        int baseVariant = tmt1.variant;
+        BitSet covered = new BitSet((int) Math.pow(16, 4));
+        double uncoveredEstimate = 1;
+        int generated = 0;
+        while (generated < tables) {
+            tmt1.tableIndex = generated;
+            tmt1.variant = baseVariant + generated;
+            long start = System.nanoTime();
+            tmt1.generateTable(plainTextBlock, tmt1.tableChains, tmt1.tableColumns);
+            System.out.println(String.format("Table %d generated in %.1f ms", generated, (System.nanoTime() - start) / 1e6));
+            BitSet tableKeys = tmt1.table.coveredKeys();
+            covered.or(tableKeys);
+            uncoveredEstimate *= 1 - tableKeys.cardinality() / Math.pow(16, 4);
+            tmt1.printTableReport(tableKeys.cardinality());
+            tmt1.saveBinaryTable(tableFileName(tmt1.binaryTableName, generated));
+            if (text && generated == 0) {
+                tmt1.saveTable(tmt1.tableName);
+            }
+            generated++;
 
-        tmt1.generateTable(plainTextBlock, tmt1.tableChains, tmt1.tableColumns);
-        tmt1.saveTable(tmt1.tableName);
+            System.out.println(String.format("Coverage of %d table(s): %.2f%% (%.2f%% if tables were independent)",
+                    generated, 100.0 * covered.cardinality() / Math.pow(16, 4), 100 * (1 - uncoveredEstimate)));
+            if (targetCoverage > 0 && 100.0 * covered.cardinality() / Math.pow(16, 4) >= targetCoverage) {
+                break;
+            }
+        }
+        if (targetCoverage > 0 && 100.0 * covered.cardinality() / Math.pow(16, 4) < targetCoverage) {
+            System.out.println("WARNING: target coverage not reached with " + generated + " tables");
+        }
+
+//        Tables of an older, larger set would otherwise be searched as part of this one
+        int stale = generated;
+        while (new File(tableFileName(tmt1.binaryTableName, stale)).delete()) {
+            stale++;
+        }
+    }
+
+    /**
+     * File of table k of a set, the first table keeps the plain file name
+     */
+    protected static String tableFileName(String binaryTableName, int k) {
+        if (k == 0) {
+            return binaryTableName;
+        }
+        int dot = binaryTableName.lastIndexOf('.');
+        return binaryTableName.substring(0, dot) + "." + k + binaryTableName.substring(dot);
+    }
+
+    /**
+     * Prints the shape, coverage and chain merges of the last generated table
+     */
+    private void printTableReport(int covered) {
+        System.out.println((table.getFunction().isRainbow() ? "Rainbow" : "Hellman") + " table " + tableIndex
+                + ", variant " + variant + ": " + table.size() + " chains x " + tableColumns + " columns");
+        System.out.println(String.format("Key coverage: %d of %d keys (%.2f%%)",
+                covered, (int) Math.pow(16, 4), 100.0 * covered / Math.pow(16, 4)));
+        if (distinguishedBits > 0) {
+            long steps = 0;
+            for (int i = 0; i < table.size(); i++) {
+                steps += table.length(i);
+            }
+            System.out.println(String.format("Distinguished points: %d bits, mean chain length %.1f",
+                    distinguishedBits, (double) steps / table.size()));
+            System.out.println("Merged chains (sharing a distinguished end point): " + table.collidingEnds());
+        } else {
+            System.out.println("Chains sharing an end point: " + table.collidingEnds());
+        }
     }
 
 
@@ -62,34 +213,205 @@ public class TMT1 {
 
     /**
      * Renders given number of chains (rows) which have given number of columns
-     * and store only the first and last chain entries
+     * and store only the first and last chain entries.
+     * Chains are generated in parallel, in fixed size partitions that each draw
+     * their start keys from their own RNG stream derived from the seed, so the
+     * table only depends on the seed and not on the number of cores.
+     * With distinguished points every chain runs to the first distinguished
+     * point instead, and start keys that reach none within columns steps are
+     * replaced by new ones.
+     * With checkpoints, partitions already in the segment directory are read
+     * back instead of generated, and every new one is appended as it finishes.
+     */
+    protected void generateTable(int plainText, int rows, int columns) throws IOException {
+        ChainFunction function = new ChainFunction(plainText, mode, variant);
+        int partitions = (rows + chainsPerPartition - 1) / chainsPerPartition;
+
+        ChainSegments segments = null;
+        List<int[][]> chains;
+        try {
+            if (checkpoint) {
+                segments = new ChainSegments(segmentDirectory(), function, columns, distinguishedBits,
+                        tableIndex, chainsPerPartition, seed);
+                if (segments.chains() > 0) {
+                    System.out.println("Resuming from " + segments.chains() + " checkpointed chains in " + segmentDirectory());
+                }
+            }
+            ChainSegments checkpoints = segments;
+            chains = IntStream.range(0, partitions).parallel()
+                    .mapToObj(p -> partitionChains(checkpoints, p, function,
+                            Math.min(chainsPerPartition, rows - p * chainsPerPartition), columns))
+                    .collect(Collectors.toList());
+            if (segments != null) {
+                segments.compact();
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            if (segments != null) {
+                segments.close();
+            }
+        }
+
+//        Merge in partition order, a start key drawn by two partitions gives the same chain twice
+        boolean[] used = new boolean[(int) Math.pow(16, 4)];
+        int usedKeys = 0;
+        int[] starts = new int[rows];
+        int[] ends = new int[rows];
+        int[] lengths = new int[rows];
+        int count = 0;
+        for (int[][] partition : chains) {
+            for (int i = 0; i < partition[0].length; i++) {
+                if (!used[partition[0][i]]) {
+                    used[partition[0][i]] = true;
+                    usedKeys++;
+                    starts[count] = partition[0][i];
+                    ends[count] = partition[1][i];
+                    lengths[count++] = partition[2][i];
+                }
+            }
+        }
+
+//        Top up any chains lost to such duplicates from one more stream
+        SplittableRandom rand = partitionRandom(partitions);
+        int mask = (1 << distinguishedBits) - 1;
+        while (count < rows && usedKeys < used.length) {
+            int key = rand.nextInt((int) Math.pow(16, 4));
+            if (!used[key]) {
+                used[key] = true;
+                usedKeys++;
+                if (distinguishedBits == 0) {
+                    starts[count] = key;
+                    ends[count] = chainEnd(key, function, columns);
+                    lengths[count++] = columns;
+                } else {
+                    int chain = distinguishedChain(key, function, columns, mask);
+                    if (chain != -1) {
+                        starts[count] = key;
+                        ends[count] = chain >>> 16;
+                        lengths[count++] = chain & 0xffff;
+                    }
+                }
+            }
+        }
+        if (count < rows) {
+            System.out.println("WARNING: only " + count + " start keys reach a distinguished point");
+            starts = Arrays.copyOf(starts, count);
+            ends = Arrays.copyOf(ends, count);
+            lengths = Arrays.copyOf(lengths, count);
+        }
+        table = new ChainTable(function, columns, distinguishedBits, seed, ends, starts, lengths);
+    }
+
+    /**
+     * Chains of one partition, read from the checkpoints if they hold it, otherwise generated and checkpointed
      */
-    protected void generateTable(int plainText, int rows, int columns) {
-        table = new HashMap<>();
-        Random rand = new Random();
+    private int[][] partitionChains(ChainSegments segments, int partition, ChainFunction function, int rows, int columns) {
+        if (segments != null) {
+            int[][] done = segments.partition(partition);
+//            A partition's RNG stream always draws the same keys first, so a longer one holds this one
+            if (done != null && done[0].length >= rows) {
+                return new int[][]{Arrays.copyOf(done[0], rows), Arrays.copyOf(done[1], rows), Arrays.copyOf(done[2], rows)};
+            }
+        }
+        int[][] chains = generateChains(partitionRandom(partition), function, rows, columns, distinguishedBits);
+        if (segments != null) {
+            try {
+                segments.append(partition, chains);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return chains;
+    }
 
-        for (int i = 0; i < rows; i++) {
+    /**
+     * Checkpoint directory of the table being generated
+     */
+    protected String segmentDirectory() {
+        return tableFileName(binaryTableName, tableIndex) + ".segments";
+    }
+
+    /**
+     * RNG stream of one partition, only depends on the seed, table and partition number
+     */
+    protected SplittableRandom partitionRandom(int partition) {
+        return new SplittableRandom(seed + (((long) tableIndex << 32) + partition) * 0x9E3779B97F4A7C15L);
+    }
+
+    /**
+     * Generates chains from distinct random start keys, returns the starts, ends and lengths
+     */
+    private static int[][] generateChains(SplittableRandom rand, ChainFunction function, int rows, int columns,
+                                          int distinguishedBits) {
+        int[] starts = new int[rows];
+        int[] ends = new int[rows];
+        int[] lengths = new int[rows];
+        int mask = (1 << distinguishedBits) - 1;
+        Set<Integer> used = new HashSet<>();
+        int count = 0;
+        while (count < rows && used.size() < (int) Math.pow(16, 4)) {
             int key = rand.nextInt((int) Math.pow(16, 4));
-            while (table.containsKey(key)) {
-                key = rand.nextInt((int) Math.pow(16, 4));
+            if (!used.add(key)) {
+                continue;
+            }
+            if (distinguishedBits == 0) {
+                starts[count] = key;
+                ends[count] = chainEnd(key, function, columns);
+                lengths[count++] = columns;
+            } else {
+                int chain = distinguishedChain(key, function, columns, mask);
+                if (chain != -1) {
+                    starts[count] = key;
+                    ends[count] = chain >>> 16;
+                    lengths[count++] = chain & 0xffff;
+                }
             }
-            int x_j = key;
-            for (int j = 0; j < columns; j++) {
-                x_j = Coder.encrypt(x_j, plainText);
+        }
+        return new int[][]{Arrays.copyOf(starts, count), Arrays.copyOf(ends, count), Arrays.copyOf(lengths, count)};
+    }
+
+    protected static int chainEnd(int key, ChainFunction function, int columns) {
+        int x_j = key;
+        for (int j = 0; j < columns; j++) {
+            x_j = function.step(x_j, j);
+        }
+        return x_j;
+    }
 
+    /**
+     * Walks from key to the first distinguished point, at least one step and at
+     * most maxLength steps away, and returns (end << 16 | length), or -1 if there is none
+     */
+    protected static int distinguishedChain(int key, ChainFunction function, int maxLength, int mask) {
+        int x_j = key;
+        for (int j = 0; j < maxLength; j++) {
+            x_j = function.step(x_j, j);
+            if ((x_j & mask) == 0) {
+                return (x_j << 16) | (j + 1);
             }
-            table.put(key, x_j);
         }
+        return -1;
     }
 
+    protected ChainTable getTable() {
+        return table;
+    }
+
+    /**
+     * Saves the computed table in the binary format TMT2 maps into memory
+     */
+    protected void saveBinaryTable(String filename) throws IOException {
+        table.save(filename);
+    }
 
     /**
-     * Reverses the computed table and saves it the file
+     * Saves the computed table to the file as "end, start" lines, sorted by end
      */
     protected void saveTable(String filename) throws FileNotFoundException {
         try (PrintWriter writer = new PrintWriter(filename)) {
-            for (int key : table.keySet()) {
-                writer.println(table.get(key) + ", " + key);
+            for (int i = 0; i < table.size(); i++) {
+                writer.println(table.end(i) + ", " + table.start(i));
             }
             writer.close();
         }
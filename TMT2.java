@@ -6,16 +6,18 @@ import FormatIO.EofX;
 import FormatIO.FileIn;
 
 import java.io.*;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.LongAdder;
 
 public class TMT2 {
-    private HashMap<Integer, Integer> table;
+    private final List<ChainTable> tables = new ArrayList<>();
+    private final LongAdder probes = new LongAdder();
+    private final LongAdder falseAlarms = new LongAdder();
 
     private TMT2() {
-        this.table = new HashMap<>();
     }
 
     /***
@@ -42,7 +44,7 @@ public class TMT2 {
                 for (; ; ) {
                     String s = fin.readWord();
                     int c = Hex16.convert(s);
-                    int p = Coder.decrypt(key, c);
+                    int p = CoderEngine.decrypt(key, c);
                     String out = String.format("0x%04x", p);
                     newBuffer.write(out + "\n");
                 }
@@ -89,13 +91,62 @@ public class TMT2 {
     public static void main(String[] args) throws Exception {
         TMT2 tmt2 = new TMT2();
         TMT1 tmt1 = new TMT1();
-
-//        Construct table which was pre-generated using tm1 class
-        tmt2.constructTable(tmt1.tableName);
+        boolean verify = false;
+        boolean codebook = false;
+        int benchmark = 0;
+//        Options: -verify (check the table checksums)
+//        -codebook (look the key up in the full codebook instead of walking chains)
+//        -benchmark <lookups, compare the codebook with the chain tables on random keys>
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-verify":
+                    verify = true;
+                    break;
+                case "-codebook":
+                    codebook = true;
+                    break;
+                case "-benchmark":
+                    benchmark = Integer.parseInt(args[++i]);
+                    break;
+                default:
+                    System.out.println("Unknown option " + args[i]);
+                    System.exit(1);
+            }
+        }
         int firstTextBlock = tmt2.getFirstTextBlock(tmt1.plainTextFile);
         int firstCypherTextBlock = tmt2.getFirstTextBlock(tmt1.cypherTextFile);
 
-        int key = tmt2.findKey(firstCypherTextBlock, firstTextBlock);
+        int key;
+        if (codebook) {
+            Codebook book = Codebook.build(firstTextBlock);
+            int[] keys = book.keysFor(firstCypherTextBlock);
+            System.out.println("Codebook candidates: " + keys.length);
+            for (int candidate : keys) {
+                System.out.println(String.format("  0x%04x", candidate));
+            }
+            key = (keys.length > 0) ? keys[0] : -1;
+        } else {
+//            Open the tables which were pre-generated using tm1 class, or import the old text format
+            tmt2.loadTables(tmt1, firstTextBlock);
+//            Checksums are only checked on request, as that reads the whole table
+            if (verify) {
+                for (int k = 0; k < tmt2.tables.size(); k++) {
+                    System.out.println("Table " + k + " checksum " + (tmt2.tables.get(k).verify() ? "OK" : "MISMATCH"));
+                }
+            }
+            if (benchmark > 0) {
+                tmt2.benchmark(firstTextBlock, benchmark);
+                return;
+            }
+
+            key = tmt2.findKey(firstCypherTextBlock, firstTextBlock);
+            System.out.println("Tables searched: " + tmt2.tables.size() + ", table probes: " + tmt2.probes
+                    + ", false alarms: " + tmt2.falseAlarms);
+        }
+        if (key < 0) {
+            System.out.println("Key not covered by any table, generate more tables with TMT1 -tables or -coverage");
+            System.exit(1);
+        }
 
         System.out.println("INT key: " + key);
         String hexKey = String.format("0x%04x", key);
@@ -149,9 +200,97 @@ public class TMT2 {
 
 
     /**
-     * Reconstruct the pre-computed table from a file
+     * Maps every binary table of the set, or imports the text table, and refuses
+     * tables built for another plain text
+     */
+    private void loadTables(TMT1 tmt1, int plainText) throws IOException {
+        tables.addAll(openTables(tmt1, plainText));
+        int tablePlainText = tables.get(0).getFunction().getPlainText();
+//        Chains only hold keys for the plain text they were built with
+        if (tablePlainText != plainText) {
+            System.out.println(String.format("Table was built for plain text 0x%04x, not 0x%04x,"
+                    + " generate it again with TMT1", tablePlainText, plainText));
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Maps every binary table of the set if there is one, otherwise imports the
+     * text table, whose chains are rebuilt with the given plain text
+     */
+    static List<ChainTable> openTables(TMT1 tmt1, int plainText) throws IOException {
+        if (new File(tmt1.binaryTableName).exists()) {
+            return openTableSet(tmt1.binaryTableName);
+        }
+        List<ChainTable> set = new ArrayList<>();
+        set.add(constructTable(tmt1.tableName, plainText));
+        return set;
+    }
+
+    /**
+     * Maps the tables TMT1 saved as one set, the first table and every further
+     * table that shares its seed
+     */
+    static List<ChainTable> openTableSet(String binaryTableName) throws IOException {
+        List<ChainTable> set = new ArrayList<>();
+        ChainTable first = ChainTable.open(binaryTableName);
+        set.add(first);
+        for (int k = 1; new File(TMT1.tableFileName(binaryTableName, k)).exists(); k++) {
+            ChainTable table = ChainTable.open(TMT1.tableFileName(binaryTableName, k));
+            if (table.getSeed() != first.getSeed()) {
+                break;
+            }
+            set.add(table);
+        }
+        return set;
+    }
+
+    /**
+     * Recovers the keys of random cypher texts through the codebook and through
+     * the loaded chain tables, and compares precomputation, memory, lookup
+     * rate and success rate. Chain tables are timed when they are generated by TMT1.
+     */
+    private void benchmark(int plainText, int lookups) {
+        SplittableRandom rand = new SplittableRandom(1);
+        int[] cypherTexts = new int[lookups];
+        for (int i = 0; i < lookups; i++) {
+            cypherTexts[i] = CoderEngine.encrypt(rand.nextInt((int) Math.pow(16, 4)), plainText);
+        }
+
+        long start = System.nanoTime();
+        Codebook book = Codebook.build(plainText);
+        double buildMs = (System.nanoTime() - start) / 1e6;
+        start = System.nanoTime();
+        int found = 0;
+        for (int cypherText : cypherTexts) {
+            if (book.count(cypherText) > 0 && CoderEngine.encrypt(book.key(cypherText, 0), plainText) == cypherText) {
+                found++;
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format("Codebook: built in %.1f ms, %d bytes, %.0f lookups/s, %.2f%% found",
+                buildMs, book.memoryBytes(), lookups / seconds, 100.0 * found / lookups));
+
+        long bytes = 0;
+        for (ChainTable table : tables) {
+            bytes += table.memoryBytes();
+        }
+        start = System.nanoTime();
+        found = 0;
+        for (int cypherText : cypherTexts) {
+            if (findKey(cypherText, plainText) >= 0) {
+                found++;
+            }
+        }
+        seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format("Chains (%d tables): %d bytes, %.0f lookups/s, %.2f%% found, %d probes, %d false alarms",
+                tables.size(), bytes, lookups / seconds, 100.0 * found / lookups, probes.sum(), falseAlarms.sum()));
+    }
+
+    /**
+     * Reconstruct the pre-computed table from a text file, which only holds Hellman chains
      */
-    private void constructTable(String filename) throws IOException {
+    private static ChainTable constructTable(String filename, int plainText) {
         String line;
 
         try {
@@ -159,18 +298,44 @@ public class TMT2 {
             BufferedReader bufferedReader =
                     new BufferedReader(fileReader);
 
+            int[] ends = new int[1024];
+            int[] starts = new int[1024];
+            int count = 0;
             while ((line = bufferedReader.readLine()) != null) {
-//              Parse the string elements to integer list
-                List<Integer> pair = Arrays.stream(line.split(", "))
-                        .map((x) -> Integer.parseInt(x))
-                        .collect(Collectors.toList());
-                if (table.get(pair.get(0)) != null) {
-                    System.out.println("Cypher value already exists!");
+//              Parse the "end, start" pair
+                String[] pair = line.split(", ");
+                if (count == ends.length) {
+                    ends = Arrays.copyOf(ends, count * 2);
+                    starts = Arrays.copyOf(starts, count * 2);
                 }
-                table.put(pair.get(0), pair.get(1));
+                ends[count] = Integer.parseInt(pair[0].trim());
+                starts[count++] = Integer.parseInt(pair[1].trim());
+            }
+//            The text format has no lengths, so walk every chain to its end to find its own
+            ChainFunction function = new ChainFunction(plainText, ChainFunction.hellman, 0);
+            int[] lengths = new int[count];
+            int kept = 0;
+            int columns = 0;
+            for (int i = 0; i < count; i++) {
+                int length = chainLength(function, starts[i], ends[i]);
+                if (length > 0) {
+                    ends[kept] = ends[i];
+                    starts[kept] = starts[i];
+                    lengths[kept++] = length;
+                    columns = Math.max(columns, length);
+                }
+            }
+            if (kept < count) {
+                System.out.println("Chains whose start never reaches their end, ignored: " + (count - kept));
+            }
+            ChainTable table = new ChainTable(function, columns, 0, 0,
+                    Arrays.copyOf(ends, kept), Arrays.copyOf(starts, kept), Arrays.copyOf(lengths, kept));
+            if (table.collidingEnds() > 0) {
+                System.out.println("Chains sharing an end point: " + table.collidingEnds());
             }
 
             bufferedReader.close();
+            return table;
         } catch (FileNotFoundException ex) {
             System.out.println(
                     "Unable to open file '" + filename + "'");
@@ -180,69 +345,42 @@ public class TMT2 {
             System.out.println("Error reading file '" + filename + "'");
             System.exit(1);
         }
+        return null;
     }
 
-
     /**
-     * 1) Looks for a chain that ends with given cypher-text
-     * 2) Reverses the chain and looks for a key
+     * Steps from start to the first time the chain reaches end, at least one
+     * step and at most as many as a chain length can hold, or 0 if it never does
      */
-    private int findKey(int cypherText, int plainText) throws Exception {
-        int newCypherText = cypherText;
-
-//        Figure out which chain contains the key
-        int count = 0;
-        while (table.get(newCypherText) == null) {
-            newCypherText = Coder.encrypt(newCypherText, plainText);
-            count += 1;
-//            Check if it doesn't take too long to find an end of a chain
-            if (count > Math.pow(16, 4) * 0.5) {
-                break;
+    private static int chainLength(ChainFunction function, int start, int end) {
+        int x_j = start;
+        for (int j = 0; j < 0xffff; j++) {
+            x_j = function.step(x_j, j);
+            if (x_j == end) {
+                return j + 1;
             }
         }
-
-//      This will only be executed if we broke the previous while loop,
-//      as it took too long to find an end of a chain
-        if (table.get(newCypherText) == null) {
-            generateNewTable(plainText);
-            return this.findKey(cypherText, plainText);
-        }
-
-//        Get corresponding start-key of the chain
-        int x_l = table.get(newCypherText);
-
-        int endCypherText = newCypherText;
-        int startCypherText = Coder.encrypt(x_l, plainText);
-
-//        Start rebuilding the chain
-        while (startCypherText != cypherText && startCypherText != endCypherText) {
-            x_l = startCypherText;
-            startCypherText = Coder.encrypt(startCypherText, plainText);
-        }
-
-//        If the we reach the end of a chain regenerate the table as the chain didn't contain the key
-        if (startCypherText == endCypherText) {
-            generateNewTable(plainText);
-            return this.findKey(cypherText, plainText);
-        }
-
-        return x_l;
+        return 0;
     }
 
 
     /**
-     * Method to regenerate a new table and warn user that it was regenerated.
-     * The table is regenerated using initially set TM1 parameters
+     * Searches every table in parallel and returns the key found in the first
+     * table that holds it, or -1 if none does. Tables are never regenerated here,
+     * a key none of them covers needs a larger table set from TMT1.
      */
-    private void generateNewTable(int plainText) throws Exception {
-        System.out.println("WARNING: Not found in table, so it will be regenerated!");
-        TMT1 tmt1 = new TMT1();
-        tmt1.generateTable(plainText, tmt1.tableChains, tmt1.tableColumns);
-        tmt1.saveTable(tmt1.tableName);
-
-//        Clean old table
-        this.table.clear();
-        this.constructTable(tmt1.tableName);
+    private int findKey(int cypherText, int plainText) {
+        return tables.parallelStream()
+                .mapToInt(table -> {
+                    ChainSearch search = new ChainSearch();
+                    int key = search.findKey(table, cypherText, plainText);
+                    probes.add(search.getProbes());
+                    falseAlarms.add(search.getFalseAlarms());
+                    return key;
+                })
+                .filter(key -> key >= 0)
+                .findFirst()
+                .orElse(-1);
     }
 
 }
@@ -0,0 +1,180 @@
+/**
+ * Batch version of TMT2: maps the table set TMT1 saved once and recovers the
+ * keys of many (chosen plain text, cypher text) pairs in one JVM run. The
+ * pairs are shared out in chunks to a fixed worker pool; every worker keeps
+ * its own ChainSearch as scratch state, so the walks share nothing but the
+ * read-only tables. Results and lookups per second go to a single JSON report.
+ * <p>
+ * Usage: TMTBatch pairs [report file] [threads]
+ * <p>
+ * The pairs file has one "plainText cypherText" pair of hex blocks per line,
+ * e.g. "0x5769 0x1b2c". Chain tables only hold keys for the plain text they
+ * were built with, pairs with any other plain text are reported as errors, as
+ * are malformed lines. Without a binary table set the text table is imported
+ * for TMT1's plain text, as TMT2 does.
+ */
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TMTBatch {
+    private static final String block = "0[xX][0-9a-fA-F]{4}";
+
+    private String reportFile = "src/tmt_batch_report.json";
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int pairsPerChunk = 64;
+
+    private List<ChainTable> tables;
+    private int[] plainTexts;
+    private int[] cypherTexts;
+    private String[] errors;
+    private int[] keys;
+    private long probes;
+    private long falseAlarms;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 1) {
+            System.out.println("Usage: TMTBatch pairs [report file] [threads]");
+            System.exit(1);
+        }
+        TMTBatch batch = new TMTBatch();
+        if (args.length > 1) {
+            batch.reportFile = args[1];
+        }
+        if (args.length > 2) {
+//            The pool needs at least one worker, and the report shows the pool size used
+            batch.threads = Math.max(1, Integer.parseInt(args[2]));
+        }
+
+        TMT1 tmt1 = new TMT1();
+        batch.tables = TMT2.openTables(tmt1, tmt1.getPlainTextBlock(tmt1.plainTextFile));
+        batch.readPairs(args[0]);
+        long start = System.nanoTime();
+        batch.run();
+        long elapsed = System.nanoTime() - start;
+
+        batch.writeReport(elapsed);
+        System.out.println("Resolved " + batch.found() + " of " + batch.keys.length + " pairs against "
+                + batch.tables.size() + " tables in " + elapsed / 1000000 + " ms, "
+                + String.format("%.1f", batch.keys.length / (elapsed / 1e9)) + " lookups/s");
+        System.out.println("Table probes: " + batch.probes + ", false alarms: " + batch.falseAlarms);
+        System.out.println("Report written to " + batch.reportFile);
+    }
+
+    /***
+     * Reads the pairs, a malformed line becomes a pair with an error instead of aborting the batch
+     */
+    private void readPairs(String fileName) throws IOException {
+        List<int[]> pairs = new ArrayList<>();
+        List<String> lineErrors = new ArrayList<>();
+        try (BufferedReader bufferedReader = new BufferedReader(new FileReader(fileName))) {
+            String line;
+            while ((line = bufferedReader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] words = line.split("[\\s,]+");
+//                Hex16 reads exactly four digits after "0x" and throws on anything shorter
+                if (words.length != 2 || !words[0].matches(block) || !words[1].matches(block)) {
+                    pairs.add(new int[]{0, 0});
+                    lineErrors.add("Malformed pair '" + line + "', expected e.g. 0x5769 0x1b2c");
+                    continue;
+                }
+                pairs.add(new int[]{Hex16.convert(words[0]), Hex16.convert(words[1])});
+                lineErrors.add(null);
+            }
+        }
+        plainTexts = new int[pairs.size()];
+        cypherTexts = new int[pairs.size()];
+        errors = lineErrors.toArray(new String[0]);
+        for (int i = 0; i < pairs.size(); i++) {
+            plainTexts[i] = pairs.get(i)[0];
+            cypherTexts[i] = pairs.get(i)[1];
+        }
+    }
+
+    /***
+     * Every worker claims chunks of pairs until none are left, and writes the
+     * keys of its pairs straight into keys (-1 if no table holds the key)
+     */
+    private void run() throws InterruptedException {
+        keys = new int[cypherTexts.length];
+        int tablePlainText = tables.get(0).getFunction().getPlainText();
+        AtomicInteger nextChunk = new AtomicInteger();
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<ChainSearch>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            futures.add(pool.submit(() -> {
+                ChainSearch search = new ChainSearch();
+                int from;
+                while ((from = nextChunk.getAndIncrement() * pairsPerChunk) < keys.length) {
+                    for (int i = from; i < Math.min(keys.length, from + pairsPerChunk); i++) {
+                        keys[i] = (errors[i] == null && plainTexts[i] == tablePlainText)
+                                ? search.findKey(tables, cypherTexts[i], plainTexts[i]) : -1;
+                    }
+                }
+                return search;
+            }));
+        }
+        pool.shutdown();
+
+        for (Future<ChainSearch> future : futures) {
+            try {
+                probes += future.get().getProbes();
+                falseAlarms += future.get().getFalseAlarms();
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Lookup worker failed", e.getCause());
+            }
+        }
+    }
+
+    private int found() {
+        int found = 0;
+        for (int key : keys) {
+            if (key >= 0) {
+                found++;
+            }
+        }
+        return found;
+    }
+
+    private void writeReport(long elapsedNanos) throws IOException {
+        int tablePlainText = tables.get(0).getFunction().getPlainText();
+        try (PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(reportFile)))) {
+            writer.println("{");
+            writer.println("  \"pairs\": " + keys.length + ",");
+            writer.println("  \"found\": " + found() + ",");
+            writer.println("  \"tables\": " + tables.size() + ",");
+            writer.println("  \"threads\": " + threads + ",");
+            writer.println("  \"elapsedMs\": " + elapsedNanos / 1000000 + ",");
+            writer.println("  \"lookupsPerSecond\": " + String.format(Locale.ROOT, "%.1f", keys.length / (elapsedNanos / 1e9)) + ",");
+            writer.println("  \"probes\": " + probes + ",");
+            writer.println("  \"falseAlarms\": " + falseAlarms + ",");
+            writer.println("  \"results\": [");
+            for (int i = 0; i < keys.length; i++) {
+                writer.print(String.format("    {\"plain\": \"0x%04x\", \"cypher\": \"0x%04x\"", plainTexts[i], cypherTexts[i]));
+                if (keys[i] >= 0) {
+                    writer.print(String.format(", \"key\": \"0x%04x\"", keys[i]));
+                } else if (errors[i] != null) {
+                    writer.print(", \"error\": " + Json.string(errors[i]));
+                } else if (plainTexts[i] != tablePlainText) {
+                    writer.print(String.format(", \"error\": \"tables were built for plain text 0x%04x\"", tablePlainText));
+                } else {
+                    writer.print(", \"error\": \"key not covered by any table\"");
+                }
+                writer.println((i < keys.length - 1) ? "}," : "}");
+            }
+            writer.println("  ]");
+            writer.println("}");
+        }
+    }
+}
@@ -0,0 +1,200 @@
+/**
+ * Quality report for TMT tables: exact key coverage, how much of the work
+ * was lost to merging chains and how many end points collide, written as JSON
+ * so different table shapes can be compared by coverage per byte.
+ * <p>
+ * Usage: TableAnalyzer [table files] [-report file] [-try chains x columns] [-seed n] [-rainbow] [-dp bits]
+ * <p>
+ * Without table files the table set TMT1 saved is analysed. Every -try (e.g.
+ * "-try 512x128") generates a table of that shape in memory with the given
+ * TMT1 options instead, so shapes can be tried without saving them.
+ * <p>
+ * Chains are walked in parallel partitions, each counting how often every key
+ * is visited; a chain has merged when one of its keys is visited more than
+ * once, by another chain or by itself after running into a cycle.
+ */
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.stream.IntStream;
+
+public class TableAnalyzer {
+    private static final int keySpaceSize = (int) Math.pow(16, 4);
+
+    private String reportFile = "src/table_report.json";
+
+    /***
+     * Measurements of a single table
+     */
+    static class Analysis {
+        private final String name;
+        private final ChainTable table;
+        private BitSet covered;
+        private long points;
+        private int mergedChains;
+        private double elapsedMs;
+
+        Analysis(String name, ChainTable table) {
+            this.name = name;
+            this.table = table;
+        }
+
+        double coverage() {
+            return (double) covered.cardinality() / keySpaceSize;
+        }
+
+        /***
+         * Fraction of chain entries that repeat a key another entry already covers
+         */
+        double mergeRate() {
+            return (points == 0) ? 0 : (double) (points - covered.cardinality()) / points;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        TableAnalyzer analyzer = new TableAnalyzer();
+        TMT1 tmt1 = new TMT1();
+        List<String> files = new ArrayList<>();
+        List<int[]> shapes = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-report":
+                    analyzer.reportFile = args[++i];
+                    break;
+                case "-seed":
+                    tmt1.seed = Long.parseLong(args[++i]);
+                    break;
+                case "-rainbow":
+                    tmt1.mode = ChainFunction.rainbow;
+                    break;
+                case "-dp":
+                    tmt1.distinguishedBits = Integer.parseInt(args[++i]);
+                    break;
+                case "-try":
+                    String[] shape = args[++i].toLowerCase().split("x");
+                    shapes.add(new int[]{Integer.parseInt(shape[0].trim()), Integer.parseInt(shape[1].trim())});
+                    break;
+                default:
+                    if (args[i].startsWith("-")) {
+                        System.out.println("Unknown option " + args[i]);
+                        System.out.println("Usage: TableAnalyzer [table files] [-report file] [-try chains x columns]"
+                                + " [-seed n] [-rainbow] [-dp bits]");
+                        System.exit(1);
+                    }
+                    files.add(args[i]);
+            }
+        }
+        if (files.isEmpty() && shapes.isEmpty()) {
+            for (int k = 0; new File(TMT1.tableFileName(tmt1.binaryTableName, k)).exists(); k++) {
+                files.add(TMT1.tableFileName(tmt1.binaryTableName, k));
+            }
+        }
+
+        List<Analysis> analyses = new ArrayList<>();
+        for (String file : files) {
+            analyses.add(analyzer.analyse(file, ChainTable.open(file)));
+        }
+        if (!shapes.isEmpty()) {
+            int plainText = tmt1.getPlainTextBlock(tmt1.plainTextFile);
+            for (int[] shape : shapes) {
+                tmt1.generateTable(plainText, shape[0], shape[1]);
+                analyses.add(analyzer.analyse(shape[0] + "x" + shape[1], tmt1.getTable()));
+            }
+        }
+        if (analyses.isEmpty()) {
+            System.out.println("No tables to analyse, run TMT1 first or give table files");
+            System.exit(1);
+        }
+
+        BitSet union = new BitSet(keySpaceSize);
+        for (Analysis analysis : analyses) {
+            union.or(analysis.covered);
+            System.out.println(String.format("%s: %d chains, coverage %.2f%%, merge rate %.2f%%, "
+                            + "merged chains %d, colliding ends %d, %.1f covered keys per byte",
+                    analysis.name, analysis.table.size(), 100 * analysis.coverage(), 100 * analysis.mergeRate(),
+                    analysis.mergedChains, analysis.table.collidingEnds(),
+                    (double) analysis.covered.cardinality() / analysis.table.memoryBytes()));
+        }
+        if (shapes.isEmpty()) {
+            System.out.println(String.format("Coverage of all tables: %.2f%%", 100.0 * union.cardinality() / keySpaceSize));
+        }
+        analyzer.writeReport(analyses, shapes.isEmpty() ? union : null);
+        System.out.println("Report written to " + analyzer.reportFile);
+    }
+
+    /***
+     * Counts the visits of every key in parallel partitions of chains, then
+     * finds the chains that share a key with another chain
+     */
+    private Analysis analyse(String name, ChainTable table) {
+        long start = System.nanoTime();
+        Analysis analysis = new Analysis(name, table);
+        int[] visits = table.visits();
+
+        analysis.covered = new BitSet(keySpaceSize);
+        for (int key = 0; key < keySpaceSize; key++) {
+            if (visits[key] > 0) {
+                analysis.covered.set(key);
+                analysis.points += visits[key];
+            }
+        }
+        analysis.mergedChains = (int) IntStream.range(0, table.size()).parallel()
+                .filter(chain -> hasMerged(table, chain, visits))
+                .count();
+        analysis.elapsedMs = (System.nanoTime() - start) / 1e6;
+        return analysis;
+    }
+
+    /***
+     * True if any key of the chain is visited more than once in the table
+     */
+    private static boolean hasMerged(ChainTable table, int chain, int[] visits) {
+        ChainFunction function = table.getFunction();
+        int x_j = table.start(chain);
+        for (int j = 0; j < table.length(chain); j++) {
+            if (visits[x_j] > 1) {
+                return true;
+            }
+            x_j = function.step(x_j, j);
+        }
+        return false;
+    }
+
+    private void writeReport(List<Analysis> analyses, BitSet union) throws IOException {
+        try (PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(reportFile)))) {
+            writer.println("{");
+            writer.println("  \"keySpace\": " + keySpaceSize + ",");
+            if (union != null) {
+                writer.println("  \"coveredKeys\": " + union.cardinality() + ",");
+                writer.println("  \"coverage\": " + String.format(Locale.ROOT, "%.6f", (double) union.cardinality() / keySpaceSize) + ",");
+            }
+            writer.println("  \"tables\": [");
+            for (int i = 0; i < analyses.size(); i++) {
+                Analysis analysis = analyses.get(i);
+                ChainTable table = analysis.table;
+                writer.print("    {\"table\": " + Json.string(analysis.name)
+                        + ", \"mode\": \"" + (table.getFunction().isRainbow() ? "rainbow" : "hellman") + "\""
+                        + ", \"variant\": " + table.getFunction().getVariant()
+                        + ", \"distinguishedBits\": " + table.getDistinguishedBits()
+                        + ", \"chains\": " + table.size()
+                        + ", \"columns\": " + table.getColumns()
+                        + ", \"bytes\": " + table.memoryBytes()
+                        + ", \"points\": " + analysis.points
+                        + ", \"coveredKeys\": " + analysis.covered.cardinality()
+                        + ", \"coverage\": " + String.format(Locale.ROOT, "%.6f", analysis.coverage())
+                        + ", \"mergeRate\": " + String.format(Locale.ROOT, "%.6f", analysis.mergeRate())
+                        + ", \"mergedChains\": " + analysis.mergedChains
+                        + ", \"collidingEnds\": " + table.collidingEnds()
+                        + ", \"coveredKeysPerByte\": "
+                        + String.format(Locale.ROOT, "%.3f", (double) analysis.covered.cardinality() / table.memoryBytes())
+                        + ", \"elapsedMs\": " + String.format(Locale.ROOT, "%.1f", analysis.elapsedMs));
+                writer.println((i < analyses.size() - 1) ? "}," : "}");
+            }
+            writer.println("  ]");
+            writer.println("}");
+        }
+    }
+}
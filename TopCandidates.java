@@ -0,0 +1,100 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Bounded collection of the K best keys found by CTO. Only the key and its
+ * scores are kept, never the plain text, so memory stays the same however
+ * many keys survive the character filter. Ties are broken by the lower key,
+ * which makes the result independent of the order keys are offered in, so
+ * per-thread instances can be merged in any order.
+ */
+public class TopCandidates {
+
+    /***
+     * A key that survived the character filter, with its scores
+     */
+    public static class Candidate {
+        public final int key;
+        public final float mse;
+        public final float bigramScore;
+        public final double logLikelihood;
+
+        public Candidate(int key, float mse, float bigramScore) {
+            this(key, mse, bigramScore, 0);
+        }
+
+        public Candidate(int key, float mse, float bigramScore, double logLikelihood) {
+            this.key = key;
+            this.mse = mse;
+            this.bigramScore = bigramScore;
+            this.logLikelihood = logLikelihood;
+        }
+    }
+
+    /***
+     * Lowest MSE first
+     */
+    public static final Comparator<Candidate> byMse =
+            Comparator.comparingDouble((Candidate c) -> c.mse).thenComparingInt(c -> c.key);
+
+    /***
+     * Highest bigram score first
+     */
+    public static final Comparator<Candidate> byBigramScore =
+            Comparator.comparingDouble((Candidate c) -> -c.bigramScore).thenComparingInt(c -> c.key);
+
+    /***
+     * Highest language model log-likelihood first
+     */
+    public static final Comparator<Candidate> byLogLikelihood =
+            Comparator.comparingDouble((Candidate c) -> -c.logLikelihood).thenComparingInt(c -> c.key);
+
+    private final int capacity;
+    private final Comparator<Candidate> ranking;
+//    Worst kept candidate at the head, so it is the one dropped on overflow
+    private final PriorityQueue<Candidate> heap;
+
+    public TopCandidates(int capacity, Comparator<Candidate> ranking) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Capacity must not be negative: " + capacity);
+        }
+        this.capacity = capacity;
+        this.ranking = ranking;
+        this.heap = new PriorityQueue<>(capacity + 1, ranking.reversed());
+    }
+
+    public void offer(Candidate candidate) {
+        if (heap.size() < capacity) {
+            heap.add(candidate);
+        } else if (capacity > 0 && ranking.compare(candidate, heap.peek()) < 0) {
+            heap.poll();
+            heap.add(candidate);
+        }
+    }
+
+    /***
+     * Offers every candidate of other to this one and returns this
+     */
+    public TopCandidates merge(TopCandidates other) {
+        for (Candidate candidate : other.heap) {
+            offer(candidate);
+        }
+        return this;
+    }
+
+    public int size() {
+        return heap.size();
+    }
+
+    /***
+     * Kept candidates, best first
+     */
+    public List<Candidate> ranked() {
+        List<Candidate> ranked = new ArrayList<>(heap);
+        Collections.sort(ranked, ranking);
+        return ranked;
+    }
+}